@@ -0,0 +1,150 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import org.slf4j.LoggerFactory
+import java.util.concurrent.TimeUnit
+
+class AdaptiveRateLimitExceededException(rate: Double) :
+    RuntimeException("Request rate limit of $rate/s, applied while DynamoDB is throttling, exceeded")
+
+/**
+ * Client-side request rate limiter that reacts to DynamoDB throttling.
+ *
+ * The limiter is inactive until a throttling error is observed. It then limits the sending rate to a fraction
+ * of the rate measured before throttling (multiplicative decrease), and increases it over time while no throttling
+ * happens (multiplicative increase per second). It becomes inactive again after [DEACTIVATE_AFTER_NANOS] without
+ * throttling.
+ *
+ * Requests that would have to wait longer than [maxWaitNanos] for their turn are rejected without taking a token,
+ * so that the requests waiting never amount to more than that time at the current rate.
+ */
+class AdaptiveRateLimiter(private val maxWaitNanos: Long)
+{
+    private val _bucket = TokenBucket(MIN_RATE, MIN_RATE)
+
+    @Volatile
+    private var _active = false
+
+    // Measurement of the request rate, over one second windows
+    private var _windowStartNanos = System.nanoTime()
+    private var _requestsInWindow = 0L
+    private var _measuredRate = 0.0
+
+    private var _lastThrottleNanos = 0L
+    private var _lastIncreaseNanos = 0L
+
+    /**
+     * Waits until the request can be sent, or throws [AdaptiveRateLimitExceededException] if that would take longer
+     * than the maximum wait time.
+     */
+    fun acquire()
+    {
+        measure()
+        if (!_active)
+        {
+            return
+        }
+        val waitNanos = _bucket.reserve(1.0, 0.0, maxWaitNanos)
+        if (waitNanos == TokenBucket.REJECTED)
+        {
+            throw AdaptiveRateLimitExceededException(_bucket.rate)
+        }
+        TokenBucket.sleepNanos(waitNanos)
+    }
+
+    @Synchronized
+    fun onThrottle()
+    {
+        val now = System.nanoTime()
+        val currentRate = if (_active) minOf(_bucket.rate, maxOf(_measuredRate, MIN_RATE)) else _measuredRate
+        val newRate = maxOf(MIN_RATE, currentRate * DECREASE_FACTOR)
+        if (!_active)
+        {
+            _logger.info("DynamoDB is throttling requests, limiting the request rate to {}/s", newRate)
+        }
+        _bucket.updateRate(newRate, maxOf(1.0, newRate))
+        _active = true
+        _lastThrottleNanos = now
+        _lastIncreaseNanos = now
+    }
+
+    /**
+     * Reports a request that failed with the given error code, which lowers the rate if DynamoDB throttled it.
+     * The SDK only reports throttling to the retry policy when it is going to retry, so the attempt that ends the
+     * request, e.g. with retries disabled, is only reported here.
+     */
+    fun onFailure(errorCode: String)
+    {
+        if (errorCode in THROTTLING_ERROR_CODES)
+        {
+            onThrottle()
+        }
+    }
+
+    @Synchronized
+    fun onSuccess()
+    {
+        if (!_active)
+        {
+            return
+        }
+        val now = System.nanoTime()
+        if (now - _lastThrottleNanos > DEACTIVATE_AFTER_NANOS)
+        {
+            _logger.info("DynamoDB is no longer throttling requests, removing request rate limit")
+            _active = false
+            return
+        }
+        if (now - _lastIncreaseNanos > INCREASE_PERIOD_NANOS)
+        {
+            val newRate = _bucket.rate * INCREASE_FACTOR
+            _bucket.updateRate(newRate, maxOf(1.0, newRate))
+            _lastIncreaseNanos = now
+        }
+    }
+
+    @Synchronized
+    private fun measure()
+    {
+        val now = System.nanoTime()
+        _requestsInWindow += 1
+        val elapsed = now - _windowStartNanos
+        if (elapsed >= MEASUREMENT_WINDOW_NANOS)
+        {
+            _measuredRate = _requestsInWindow * MEASUREMENT_WINDOW_NANOS.toDouble() / elapsed
+            _requestsInWindow = 0
+            _windowStartNanos = now
+        }
+    }
+
+    companion object
+    {
+        private val _logger = LoggerFactory.getLogger(AdaptiveRateLimiter::class.java)
+
+        val THROTTLING_ERROR_CODES = setOf(
+            "ProvisionedThroughputExceededException", "ThrottlingException", "RequestLimitExceeded"
+        )
+
+        private const val MIN_RATE = 1.0
+        private const val DECREASE_FACTOR = 0.7
+        private const val INCREASE_FACTOR = 1.1
+        private val MEASUREMENT_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1)
+        private val INCREASE_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1)
+        private val DEACTIVATE_AFTER_NANOS = TimeUnit.SECONDS.toNanos(30)
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import software.amazon.awssdk.core.retry.RetryPolicyContext
+import software.amazon.awssdk.core.retry.backoff.BackoffStrategy
+import java.time.Duration
+import java.util.concurrent.ThreadLocalRandom
+
+/**
+ * Exponential backoff with decorrelated jitter
+ * [https://aws.amazon.com/blogs/architecture/exponential-backoff-and-jitter/]:
+ * each delay is a random value between [baseDelay] and three times the previous delay, capped to [maxDelay].
+ * The first delay uses [baseDelay] as the previous delay.
+ *
+ * [maxTotalDelay] bounds the sum of all the delays used while retrying a single operation.
+ *
+ * This class is also a [BackoffStrategy], so that the same policy is used by the SDK when retrying requests.
+ * Since the SDK strategy doesn't have access to the previous delay, the upper limit is computed from the number of
+ * attempts instead.
+ */
+class BackoffPolicy(
+    val baseDelay: Duration,
+    val maxDelay: Duration,
+    val maxTotalDelay: Duration
+) : BackoffStrategy
+{
+    private val _baseDelayMillis = baseDelay.toMillis()
+    private val _maxDelayMillis = maxOf(maxDelay.toMillis(), _baseDelayMillis)
+
+    fun nextDelay(previousDelay: Duration?): Duration
+    {
+        val previous = previousDelay?.toMillis() ?: _baseDelayMillis
+        return randomDelayUpTo(saturatedTimesThree(previous))
+    }
+
+    override fun computeDelayBeforeNextRetry(context: RetryPolicyContext): Duration
+    {
+        var upper = saturatedTimesThree(_baseDelayMillis)
+        repeat(context.retriesAttempted()) {
+            upper = saturatedTimesThree(upper)
+        }
+        return randomDelayUpTo(upper)
+    }
+
+    private fun saturatedTimesThree(value: Long) =
+        if (value > _maxDelayMillis / 3) _maxDelayMillis else value * 3
+
+    private fun randomDelayUpTo(upper: Long): Duration
+    {
+        val cappedUpper = minOf(upper, _maxDelayMillis)
+        return if (cappedUpper <= _baseDelayMillis)
+        {
+            Duration.ofMillis(cappedUpper)
+        } else
+        {
+            Duration.ofMillis(ThreadLocalRandom.current().nextLong(_baseDelayMillis, cappedUpper + 1))
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import org.slf4j.LoggerFactory
+
+class CircuitBreakerOpenException(name: String) : RuntimeException("Circuit breaker for '$name' is open")
+
+/**
+ * Circuit breaker with closed, open and half-open states.
+ *
+ * - While closed, the outcome of the requests is recorded in a rolling window of [windowNanos].
+ * The circuit opens when at least [minimumRequests] were made in the window and the failure percentage reaches
+ * [failureRateThreshold].
+ * - While open, requests are rejected. After [openNanos] the circuit becomes half-open.
+ * - While half-open, up to [halfOpenProbes] requests are allowed. The circuit closes if all of them succeed,
+ * and opens again if any of them fails.
+ */
+class CircuitBreaker(
+    private val name: String,
+    private val failureRateThreshold: Long,
+    private val minimumRequests: Long,
+    private val windowNanos: Long,
+    private val openNanos: Long,
+    private val halfOpenProbes: Long
+)
+{
+    private enum class State
+    {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private var _state = State.CLOSED
+    private var _openedAtNanos = 0L
+    private var _probesStarted = 0L
+    private var _probesSucceeded = 0L
+
+    // The rolling window is divided in slots, each one covering a fraction of the window
+    private val _slotNanos = maxOf(1L, windowNanos / WINDOW_SLOTS)
+    private val _slotIds = LongArray(WINDOW_SLOTS)
+    private val _slotRequests = LongArray(WINDOW_SLOTS)
+    private val _slotFailures = LongArray(WINDOW_SLOTS)
+
+    init
+    {
+        _slotIds.fill(NO_SLOT)
+    }
+
+    /**
+     * Throws [CircuitBreakerOpenException] if the request is not allowed.
+     */
+    @Synchronized
+    fun acquirePermission()
+    {
+        when (_state)
+        {
+            State.CLOSED -> return
+            State.OPEN ->
+                if (System.nanoTime() - _openedAtNanos >= openNanos)
+                {
+                    _logger.info("Circuit breaker for '{}' is half-open, probing for recovery", name)
+                    _state = State.HALF_OPEN
+                    _probesStarted = 0
+                    _probesSucceeded = 0
+                } else
+                {
+                    throw CircuitBreakerOpenException(name)
+                }
+            State.HALF_OPEN -> Unit
+        }
+        if (_probesStarted >= halfOpenProbes)
+        {
+            throw CircuitBreakerOpenException(name)
+        }
+        _probesStarted += 1
+    }
+
+    /**
+     * Gives back a permission obtained with [acquirePermission], for a request that wasn't sent.
+     */
+    @Synchronized
+    fun releasePermission()
+    {
+        if (_state == State.HALF_OPEN && _probesStarted > 0)
+        {
+            _probesStarted -= 1
+        }
+    }
+
+    @Synchronized
+    fun onResult(failed: Boolean)
+    {
+        when (_state)
+        {
+            State.CLOSED ->
+            {
+                record(failed)
+                if (shouldOpen())
+                {
+                    open()
+                }
+            }
+            State.HALF_OPEN -> if (failed)
+            {
+                open()
+            } else
+            {
+                _probesSucceeded += 1
+                if (_probesSucceeded >= halfOpenProbes)
+                {
+                    _logger.info("Circuit breaker for '{}' is closed", name)
+                    _state = State.CLOSED
+                    _slotIds.fill(NO_SLOT)
+                }
+            }
+            // A request started before the circuit opened
+            State.OPEN -> Unit
+        }
+    }
+
+    private fun open()
+    {
+        _logger.warn("Circuit breaker for '{}' is open, requests will be rejected", name)
+        _state = State.OPEN
+        _openedAtNanos = System.nanoTime()
+    }
+
+    private fun record(failed: Boolean)
+    {
+        val slotId = System.nanoTime() / _slotNanos
+        val index = Math.floorMod(slotId, WINDOW_SLOTS.toLong()).toInt()
+        if (_slotIds[index] != slotId)
+        {
+            _slotIds[index] = slotId
+            _slotRequests[index] = 0
+            _slotFailures[index] = 0
+        }
+        _slotRequests[index] += 1
+        if (failed)
+        {
+            _slotFailures[index] += 1
+        }
+    }
+
+    private fun shouldOpen(): Boolean
+    {
+        val oldestSlotId = System.nanoTime() / _slotNanos - WINDOW_SLOTS + 1
+        var requests = 0L
+        var failures = 0L
+        for (index in 0 until WINDOW_SLOTS)
+        {
+            if (_slotIds[index] != NO_SLOT && _slotIds[index] >= oldestSlotId)
+            {
+                requests += _slotRequests[index]
+                failures += _slotFailures[index]
+            }
+        }
+        return requests >= minimumRequests && failures * 100 >= failureRateThreshold * requests
+    }
+
+    companion object
+    {
+        private val _logger = LoggerFactory.getLogger(CircuitBreaker::class.java)
+
+        private const val WINDOW_SLOTS = 10
+        private const val NO_SLOT = Long.MIN_VALUE
+    }
+}
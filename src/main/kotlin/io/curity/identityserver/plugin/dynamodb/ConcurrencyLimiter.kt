@@ -0,0 +1,116 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+class ConcurrencyLimitExceededException(limit: Int) :
+    RuntimeException("Limit of $limit concurrent DynamoDB requests exceeded")
+
+/**
+ * Limits the number of in-flight requests, adapting the limit to the observed round trip time (RTT).
+ *
+ * The limit is increased additively, by about one per limit's worth of requests, while the RTT stays within
+ * [latencyTolerance] times the minimum observed RTT, and the limit is being used.
+ * It is decreased multiplicatively, at most once per minimum RTT, when the RTT exceeds that tolerance or when
+ * requests fail due to overload.
+ * The minimum RTT is kept for each kind of request, e.g. each table and operation, since a query or a transaction
+ * normally takes longer than reading a single item. It is measured again periodically, so that the limiter follows
+ * lasting latency changes.
+ *
+ * Requests above the limit wait up to [maxQueueNanos] for an in-flight request to complete, and are rejected
+ * afterwards.
+ */
+class ConcurrencyLimiter(
+    initialLimit: Long,
+    private val maxLimit: Long,
+    private val maxQueueNanos: Long,
+    private val latencyTolerance: Double
+)
+{
+    private val _lock = ReentrantLock()
+    private val _released = _lock.newCondition()
+
+    private var _limit = minOf(initialLimit, maxLimit).toDouble()
+    private var _inFlight = 0
+    private val _minRtts = HashMap<String, MinRtt>()
+    private var _lastDecreaseNanos = System.nanoTime()
+
+    private class MinRtt(var nanos: Long, var resetAtNanos: Long)
+
+    /**
+     * Waits until the request can be sent, or throws [ConcurrencyLimitExceededException] if that would take longer
+     * than the maximum queue time.
+     */
+    fun acquire() = _lock.withLock {
+        var remainingNanos = maxQueueNanos
+        while (_inFlight >= _limit.toInt())
+        {
+            if (remainingNanos <= 0)
+            {
+                throw ConcurrencyLimitExceededException(_limit.toInt())
+            }
+            remainingNanos = _released.awaitNanos(remainingNanos)
+        }
+        _inFlight += 1
+    }
+
+    /**
+     * Releases a request acquired with [acquire], after it completed in [rttNanos].
+     * The RTT is only compared with the one of the requests of the same [kind].
+     */
+    fun release(kind: String, rttNanos: Long, overloaded: Boolean) = _lock.withLock {
+        val wasLimited = _inFlight >= _limit.toInt()
+        _inFlight -= 1
+        update(kind, rttNanos, overloaded, wasLimited)
+        _released.signalAll()
+    }
+
+    private fun update(kind: String, rttNanos: Long, overloaded: Boolean, wasLimited: Boolean)
+    {
+        val now = System.nanoTime()
+        val minRtt = _minRtts.getOrPut(kind) { MinRtt(rttNanos, now + MIN_RTT_WINDOW_NANOS) }
+        if (now - minRtt.resetAtNanos > 0)
+        {
+            minRtt.nanos = rttNanos
+            minRtt.resetAtNanos = now + MIN_RTT_WINDOW_NANOS
+        }
+        minRtt.nanos = minOf(minRtt.nanos, rttNanos)
+
+        if (overloaded || rttNanos > minRtt.nanos * latencyTolerance)
+        {
+            if (now - _lastDecreaseNanos > minRtt.nanos)
+            {
+                _limit = maxOf(MIN_LIMIT, _limit * DECREASE_FACTOR)
+                _lastDecreaseNanos = now
+            }
+        } else if (wasLimited || _inFlight + 1 >= _limit / 2)
+        {
+            // Only grow the limit if it is being used
+            _limit = minOf(maxLimit.toDouble(), _limit + 1.0 / _limit)
+        }
+    }
+
+    companion object
+    {
+        private const val MIN_LIMIT = 1.0
+        private const val DECREASE_FACTOR = 0.9
+        private val MIN_RTT_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(30)
+    }
+}
@@ -89,7 +89,7 @@ class DynamoDBBucketDataAccessProvider(
         return response.hasAttributes()
     }
 
-    private object BucketsTable : Table("curity-bucket")
+    object BucketsTable : Table("curity-bucket")
     {
         val subject = StringAttribute("subject")
         val purpose = StringAttribute("purpose")
@@ -15,29 +15,36 @@
  */
 package io.curity.identityserver.plugin.dynamodb
 
+import io.curity.identityserver.plugin.dynamodb.DynamoDBBucketDataAccessProvider.BucketsTable
+import io.curity.identityserver.plugin.dynamodb.DynamoDBUserAccountDataAccessProvider.LinksTable
 import io.curity.identityserver.plugin.dynamodb.configuration.DynamoDBDataAccessProviderConfiguration
+import io.curity.identityserver.plugin.dynamodb.metrics.DynamoDBMetrics
 import io.curity.identityserver.plugin.dynamodb.query.UnsupportedQueryException
-import org.apache.http.conn.HttpHostConnectException
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 import se.curity.identityserver.sdk.alarm.ExternalServiceFailedAuthenticationAlarmException
 import se.curity.identityserver.sdk.alarm.ExternalServiceFailedCommunicationAlarmException
 import se.curity.identityserver.sdk.alarm.ExternalServiceFailedConnectionAlarmException
-import se.curity.identityserver.sdk.errors.ErrorCode
 import se.curity.identityserver.sdk.plugin.ManagedObject
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider
-import software.amazon.awssdk.auth.credentials.AwsSessionCredentials
 import software.amazon.awssdk.auth.credentials.InstanceProfileCredentialsProvider
 import software.amazon.awssdk.auth.credentials.ProfileCredentialsProvider
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider
 import software.amazon.awssdk.core.exception.SdkClientException
 import software.amazon.awssdk.core.exception.SdkException
+import software.amazon.awssdk.core.retry.RetryPolicy
+import software.amazon.awssdk.core.retry.backoff.BackoffStrategy
 import software.amazon.awssdk.regions.Region
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient
+import software.amazon.awssdk.services.dynamodb.DynamoDbBaseClientBuilder
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient
 import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest
 import software.amazon.awssdk.services.dynamodb.model.DeleteItemResponse
+import software.amazon.awssdk.services.dynamodb.model.DescribeTableRequest
+import software.amazon.awssdk.services.dynamodb.model.DescribeTableResponse
 import software.amazon.awssdk.services.dynamodb.model.DynamoDbException
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbRequest
 import software.amazon.awssdk.services.dynamodb.model.DynamoDbResponse
 import software.amazon.awssdk.services.dynamodb.model.GetItemRequest
 import software.amazon.awssdk.services.dynamodb.model.GetItemResponse
@@ -45,6 +52,7 @@ import software.amazon.awssdk.services.dynamodb.model.PutItemRequest
 import software.amazon.awssdk.services.dynamodb.model.PutItemResponse
 import software.amazon.awssdk.services.dynamodb.model.QueryRequest
 import software.amazon.awssdk.services.dynamodb.model.QueryResponse
+import software.amazon.awssdk.services.dynamodb.model.ReturnConsumedCapacity
 import software.amazon.awssdk.services.dynamodb.model.ScanRequest
 import software.amazon.awssdk.services.dynamodb.model.ScanResponse
 import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsRequest
@@ -52,55 +60,209 @@ import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsResponse
 import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest
 import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse
 import software.amazon.awssdk.services.sts.StsClient
+import software.amazon.awssdk.services.sts.auth.StsAssumeRoleCredentialsProvider
 import software.amazon.awssdk.services.sts.model.AssumeRoleRequest
-import software.amazon.awssdk.services.sts.model.AssumeRoleResponse
-import software.amazon.awssdk.services.sts.model.Credentials
+import software.amazon.awssdk.utils.SdkAutoCloseable
+import java.net.ConnectException
 import java.net.URI
 import java.time.Duration
+import java.util.concurrent.Callable
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 
 class DynamoDBClient(private val config: DynamoDBDataAccessProviderConfiguration) :
     ManagedObject<DynamoDBDataAccessProviderConfiguration>(config)
 {
     private val _awsRegion = Region.of(config.getAwsRegion().awsRegion)
+    private val _credentialsResources = mutableListOf<SdkAutoCloseable>()
+    private val _credentialsProvider = createCredentialsProvider()
+
+    // Used both by the SDK, when retrying individual requests, and by the data access providers,
+    // when retrying transactional operations.
+    val retryBackoffPolicy = BackoffPolicy(
+        Duration.ofMillis(config.getRetryBaseDelay()),
+        Duration.ofMillis(config.getRetryMaxDelay()),
+        Duration.ofMillis(config.getRetryMaxTotalDelay())
+    )
+    private val _rateLimiter = if (config.getAdaptiveRetryRateEnabled())
+    {
+        AdaptiveRateLimiter(TimeUnit.MILLISECONDS.toNanos(config.getRetryMaxDelay()))
+    } else
+    {
+        null
+    }
+
+    private val _metrics = if (config.getMetricsEnabled()) DynamoDBMetrics(config.id()) else null
+
+    private val _hedging: RequestHedging? = config.getHedgedReads()
+        .map { RequestHedging(it.delay.orElse(null), it.maxHedgedPercentage) }
+        .orElse(null)
+
+    private val _coalescing = if (config.getCoalescedReadsEnabled())
+    {
+        RequestCoalescing { tableName -> _metrics?.of(tableName, "GetItem")?.recordCollapsed() }
+    } else
+    {
+        null
+    }
+
+    private val _circuitBreakerConfig: DynamoDBDataAccessProviderConfiguration.CircuitBreaker? =
+        config.getCircuitBreaker().orElse(null)
+    private val _circuitBreakers = ConcurrentHashMap<Pair<String, String>, CircuitBreaker>()
+
+    private val _tableRateLimiters = config.getTableCapacityLimits().associate {
+        it.tableName to TableRateLimiter(
+            it.tableName,
+            it.readCapacityUnits.orElse(null),
+            it.writeCapacityUnits.orElse(null),
+            TimeUnit.MILLISECONDS.toNanos(it.maxWait)
+        )
+    }
+
+    private val _concurrencyLimiter: ConcurrencyLimiter? = config.getConcurrencyLimit()
+        .map {
+            ConcurrencyLimiter(
+                it.initialLimit,
+                it.maxLimit,
+                TimeUnit.MILLISECONDS.toNanos(it.maxQueueTime),
+                it.latencyTolerance / 100.0
+            )
+        }
+        .orElse(null)
+
+    private val _localCaches = ConcurrentHashMap<String, LocalCache<*, *>>()
+
+    private val _itemCache: ItemCacheManager? = config.getItemCache()
+        .map { itemCacheConfig ->
+            ItemCacheManager(itemCacheConfig.maxMemory * 1024).apply {
+                itemCacheConfig.buckets.ifPresent {
+                    register(it.toRegion(BucketsTable.name, BucketsTable.subject, BucketsTable.purpose))
+                }
+                itemCacheConfig.links.ifPresent {
+                    register(it.toRegion(LinksTable.name, LinksTable.pk))
+                }
+            }
+        }
+        .orElse(null)
+
+    // Number of pages requested ahead of the one being read, where 0 means that pages are not requested ahead
+    val readAheadPages: Int = config.getReadAheadPages().map { it.toInt() }.orElse(0)
+
+    // Number of segments that each scan is split into, where 1 means that scans are not split
+    val scanSegments: Int = config.getParallelScans().map { it.segments.toInt() }.orElse(1)
+
+    // Threads are only created when a parallel scan or query is used
+    private val _lazyScanExecutor = lazy { createExecutor("scan", config.getParallelScans().get().maxThreads) }
+    private val scanExecutor by _lazyScanExecutor
+
+    private val _parallelQueriesEnabled = config.getParallelQueries().isPresent
+    private val _lazyQueryExecutor = lazy { createExecutor("query", config.getParallelQueries().get().maxThreads) }
+    private val queryExecutor by _lazyQueryExecutor
+
+    // Threads from which the requests for pages read ahead are sent, rather than from a shared pool, since sending
+    // a request can wait for the client's limiters. They are only created when pages are read ahead.
+    private val _lazyReadAheadExecutor = lazy {
+        createExecutor("read-ahead", Runtime.getRuntime().availableProcessors().toLong())
+    }
+    val readAheadExecutor: Executor
+        get() = _lazyReadAheadExecutor.value
+
+    // Shared by all the data access providers using this client
+    val paginationCheckpoints: PaginationCheckpoints? = config.getPaginationCheckpoints()
+        .map {
+            PaginationCheckpoints(
+                localCache(PaginationCheckpoints.CACHE_NAME, it.maxEntries),
+                TimeUnit.SECONDS.toMillis(it.ttl)
+            )
+        }
+        .orElse(null)
+
     private val client = createClient()
 
-    private fun createClient(): DynamoDbClient
+    // The asynchronous client is only created if an asynchronous operation is used,
+    // so that deployments not using it don't pay for its event loop threads.
+    private val _lazyAsyncClient = lazy { createAsyncClient() }
+    private val asyncClient by _lazyAsyncClient
+
+    private fun createCredentialsProvider(): AwsCredentialsProvider
     {
         val accessMethod = config.getDynamodbAccessMethod()
-        val credentials: AwsCredentialsProvider =
+        return if (accessMethod.isEC2InstanceProfile.isPresent && accessMethod.isEC2InstanceProfile.get())
+        {
+            logger.debug("Using EC2 instance profile to configure DynamoDB client")
+            InstanceProfileCredentialsProvider.builder().build()
+        } else if (accessMethod.accessKeyIdAndSecret.isPresent)
+        {
+            logger.debug("Using access key ID and secret to configure DynamoDB client")
+            getUsingAccessKeyIdAndSecret(accessMethod.accessKeyIdAndSecret.get())
+        } else if (accessMethod.aWSProfile.isPresent)
+        {
+            logger.debug("Using local profile to configure DynamoDB client")
+            getUsingProfile(accessMethod.aWSProfile.get())
+        } else
+        {
+            throw IllegalStateException("DynamoDB configuration's access method is not valid")
+        }
+    }
 
-            if (accessMethod.isEC2InstanceProfile.isPresent && accessMethod.isEC2InstanceProfile.get())
-            {
-                logger.debug("Using EC2 instance profile to configure DynamoDB client")
-                InstanceProfileCredentialsProvider.builder().build()
-            } else if (accessMethod.accessKeyIdAndSecret.isPresent)
-            {
-                logger.debug("Using access key ID and secret to configure DynamoDB client")
-                getUsingAccessKeyIdAndSecret(accessMethod.accessKeyIdAndSecret.get())
-            } else if (accessMethod.aWSProfile.isPresent)
-            {
-                logger.debug("Using local profile to configure DynamoDB client")
-                getUsingProfile(accessMethod.aWSProfile.get())
-            } else
-            {
-                throw IllegalStateException("DynamoDB configuration's access method is not valid")
-            }
+    private fun createExecutor(purpose: String, threads: Long): ExecutorService
+    {
+        val threadCount = AtomicInteger()
+        return Executors.newFixedThreadPool(threads.toInt()) { runnable ->
+            Thread(runnable, "dynamodb-$purpose-${config.id()}-${threadCount.incrementAndGet()}")
+                .apply { isDaemon = true }
+        }
+    }
+
+    private fun createClient(): DynamoDbClient = DynamoDbClient.builder()
+        .applyCommonConfiguration()
+        .httpClientBuilder(syncHttpClientBuilder(config))
+        .build()
 
-        val builder = DynamoDbClient.builder()
-            .credentialsProvider(credentials)
+    private fun createAsyncClient(): DynamoDbAsyncClient = DynamoDbAsyncClient.builder()
+        .applyCommonConfiguration()
+        .httpClientBuilder(asyncHttpClientBuilder(config))
+        .build()
+
+    // Configuration shared by the synchronous and the asynchronous clients
+    private fun <B : DynamoDbBaseClientBuilder<B, C>, C> B.applyCommonConfiguration(): B
+    {
+        credentialsProvider(_credentialsProvider)
 
         if (config.getEndpointOverride().isPresent)
         {
-            builder.endpointOverride(URI.create(config.getEndpointOverride().get()))
+            endpointOverride(URI.create(config.getEndpointOverride().get()))
         }
-        builder.region(_awsRegion)
+        region(_awsRegion)
 
-        builder.overrideConfiguration { c ->
+        overrideConfiguration { c ->
             c
                 .apiCallAttemptTimeout(config.getApiCallAttemptTimeout().map { Duration.ofSeconds(it) }.orElse(null))
                 .apiCallTimeout(config.getApiCallTimeout().map { Duration.ofSeconds(it) }.orElse(null))
+                .retryPolicy(createRetryPolicy())
         }
 
+        return this
+    }
+
+    private fun createRetryPolicy(): RetryPolicy
+    {
+        val builder = RetryPolicy.builder()
+            .backoffStrategy(retryBackoffPolicy)
+            .throttlingBackoffStrategy(BackoffStrategy { context ->
+                // Only called before retrying, so the attempt that ends a request is reported by call/callAsync
+                _rateLimiter?.onThrottle()
+                retryBackoffPolicy.computeDelayBeforeNextRetry(context)
+            })
+        config.getSdkMaxRetries().ifPresent { builder.numRetries(it.toIntOrThrow("sdkMaxRetries")) }
         return builder.build()
     }
 
@@ -143,106 +305,629 @@ class DynamoDBClient(private val config: DynamoDBDataAccessProviderConfiguration
         }
     }
 
+    /*
+     * Returns a provider with temporary credentials for the given role, which are refreshed ahead of their expiration
+     * on a background thread, so that request threads never block on STS after the first credentials are obtained.
+     */
     private fun getNewCredentialsFromAssumeRole(
         credentialsProvider: AwsCredentialsProvider,
         roleARN: String
     ): AwsCredentialsProvider
     {
+        // The HTTP client must be set, since the SDK can't choose between the ones on the classpath
         val stsClient: StsClient = StsClient.builder()
             .region(_awsRegion)
             .credentialsProvider(credentialsProvider)
+            .httpClientBuilder(syncHttpClientBuilder(config))
             .build()
         val assumeRoleRequest: AssumeRoleRequest = AssumeRoleRequest.builder()
-            .durationSeconds(3600)
+            .durationSeconds(ASSUME_ROLE_DURATION_IN_SECONDS)
             .roleArn(roleARN)
             .roleSessionName("curity-dynamodb-data-access")
             .build()
 
-        return try
-        {
-            val assumeRoleResult: AssumeRoleResponse = stsClient.assumeRole(assumeRoleRequest)
-            if (!assumeRoleResult.sdkHttpResponse().isSuccessful)
+        val assumeRoleCredentialsProvider = StsAssumeRoleCredentialsProvider.builder()
+            .stsClient(stsClient)
+            .refreshRequest(assumeRoleRequest)
+            .asyncCredentialUpdateEnabled(true)
+            .build()
+
+        _credentialsResources.add(assumeRoleCredentialsProvider)
+        _credentialsResources.add(stsClient)
+
+        // Obtain the first credentials in the background, so that STS isn't on the startup critical path.
+        // If this fails, the credentials will be requested again by the first DynamoDB request.
+        CompletableFuture.runAsync {
+            try
             {
-                logger.warn(
-                    "AssumeRole Request sent but was not successful: {}",
-                    assumeRoleResult.sdkHttpResponse().statusText().get()
-                )
-                credentialsProvider //Returning the original credentials
-            } else
+                assumeRoleCredentialsProvider.resolveCredentials()
+                logger.debug("AssumeRole Request successful")
+            } catch (e: Exception)
             {
-                val credentials: Credentials = assumeRoleResult.credentials()
-                val asc: AwsSessionCredentials = AwsSessionCredentials.create(
-                    credentials.accessKeyId(),
-                    credentials.secretAccessKey(),
-                    credentials.sessionToken()
-                )
-                logger.debug("AssumeRole Request successful: {}", assumeRoleResult.sdkHttpResponse().statusText())
-                StaticCredentialsProvider.create(asc) //returning temp credentials from the assumed role
+                logger.warn("AssumeRole Request failed: {}", e.message)
             }
-        } catch (e: Exception)
-        {
-            logger.debug("AssumeRole Request failed: {}", e.message)
-            throw config.getExceptionFactory().internalServerException(ErrorCode.EXTERNAL_SERVICE_ERROR)
         }
+
+        return assumeRoleCredentialsProvider
+    }
+
+    /**
+     * Returns the named cache, creating it on first use. Caches are shared by all the data access providers
+     * using this client.
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun <K : Any, V : Any> localCache(name: String, maxSize: Long): LocalCache<K, V> =
+        _localCaches.computeIfAbsent(name) {
+            LocalCache<K, V>(name, maxSize).also { _metrics?.register(it) }
+        } as LocalCache<K, V>
+
+    fun getItem(request: GetItemRequest): GetItemResponse
+    {
+        val itemCache = _itemCache ?: return coalescedGetItem(request)
+        return itemCache.getItem(request) { coalescedGetItem(request) }
+    }
+
+    private fun coalescedGetItem(request: GetItemRequest): GetItemResponse
+    {
+        val coalescing = _coalescing ?: return sendGetItem(request)
+        return coalescing.execute(request) { sendGetItem(request) }
+    }
+
+    private fun sendGetItem(request: GetItemRequest): GetItemResponse
+    {
+        val hedging = _hedging ?: return client.call(request.tableName(), "GetItem") {
+            getItem(request.withConsumedCapacity())
+        }
+        // Hedged reads use the asynchronous client, so that both requests can be in flight at the same time
+        return hedging.execute { getItemAsync(request) }.await()
+    }
+
+    fun putItem(request: PutItemRequest): PutItemResponse = writing(request) {
+        client.call(request.tableName(), "PutItem") { putItem(request.withConsumedCapacity()) }
     }
 
-    fun getItem(request: GetItemRequest): GetItemResponse = client.call { getItem(request) }
+    fun updateItem(request: UpdateItemRequest): UpdateItemResponse = writing(request) {
+        client.call(request.tableName(), "UpdateItem") { updateItem(request.withConsumedCapacity()) }
+    }
 
-    fun putItem(request: PutItemRequest): PutItemResponse = client.call { putItem(request) }
-    fun updateItem(request: UpdateItemRequest): UpdateItemResponse = client.call { updateItem(request) }
+    fun deleteItem(request: DeleteItemRequest): DeleteItemResponse = writing(request) {
+        client.call(request.tableName(), "DeleteItem") { deleteItem(request.withConsumedCapacity()) }
+    }
 
-    fun deleteItem(request: DeleteItemRequest): DeleteItemResponse = client.call { deleteItem(request) }
+    fun query(request: QueryRequest): QueryResponse
+    {
+        val itemCache = _itemCache ?: return sendQuery(request)
+        return itemCache.query(request) { sendQuery(request) }
+    }
+
+    private fun sendQuery(request: QueryRequest): QueryResponse =
+        client.call(request.tableName(), "Query") { query(request.withConsumedCapacity()) }
 
-    fun query(request: QueryRequest): QueryResponse = client.call { query(request) }
     fun scan(request: ScanRequest): ScanResponse = if (config.getAllowTableScans())
     {
-        client.call { scan(request) }
+        client.call(request.tableName(), "Scan") { scan(request.withConsumedCapacity()) }
     } else
     {
         throw UnsupportedQueryException.QueryRequiresTableScan()
     }
 
+    /**
+     * Runs each task on the scan threads, if parallel scans are enabled, and returns their results in order.
+     * Fails with the exception of the first failed task.
+     */
+    fun <T> inParallelScans(tasks: List<() -> T>): List<T> =
+        inParallel(if (scanSegments > 1) scanExecutor else null, tasks)
+
+    /**
+     * Runs each task on the query threads, if parallel queries are enabled, and returns their results in order.
+     * Fails with the exception of the first failed task.
+     */
+    fun <T> inParallelQueries(tasks: List<() -> T>): List<T> =
+        inParallel(if (_parallelQueriesEnabled) queryExecutor else null, tasks)
+
+    private fun <T> inParallel(executor: ExecutorService?, tasks: List<() -> T>): List<T>
+    {
+        if (executor == null || tasks.size == 1)
+        {
+            return tasks.map { it() }
+        }
+        val futures = tasks.map { task -> executor.submit(Callable { task() }) }
+        try
+        {
+            return futures.map { it.await() }
+        } finally
+        {
+            // Tasks that haven't started are dropped, but running ones aren't interrupted, since an interrupted SDK
+            // call would be accounted as a failure of the service by the circuit breaker and concurrency limiter
+            futures.forEach { it.cancel(false) }
+        }
+    }
+
+    fun describeTable(request: DescribeTableRequest): DescribeTableResponse =
+        client.call(request.tableName(), "DescribeTable") { describeTable(request) }
+
     fun transactionWriteItems(request: TransactWriteItemsRequest): TransactWriteItemsResponse =
-        client.call { transactWriteItems(request) }
+        writing(request) {
+            client.call(request.tableNames(), "TransactWriteItems", request.tableNameArray()) {
+                transactWriteItems(request.withConsumedCapacity())
+            }
+        }
+
+    /*
+     * Non-blocking counterparts of the above operations.
+     * The returned futures complete exceptionally with the same exception types thrown by the blocking operations.
+     */
+
+    fun getItemAsync(request: GetItemRequest): CompletableFuture<GetItemResponse> =
+        asyncClient.callAsync(request.tableName(), "GetItem") { getItem(request.withConsumedCapacity()) }
+
+    fun putItemAsync(request: PutItemRequest): CompletableFuture<PutItemResponse> =
+        asyncClient.callAsync(request.tableName(), "PutItem") { putItem(request.withConsumedCapacity()) }
+            .afterWriting(request)
+
+    fun updateItemAsync(request: UpdateItemRequest): CompletableFuture<UpdateItemResponse> =
+        asyncClient.callAsync(request.tableName(), "UpdateItem") { updateItem(request.withConsumedCapacity()) }
+            .afterWriting(request)
+
+    fun deleteItemAsync(request: DeleteItemRequest): CompletableFuture<DeleteItemResponse> =
+        asyncClient.callAsync(request.tableName(), "DeleteItem") { deleteItem(request.withConsumedCapacity()) }
+            .afterWriting(request)
+
+    fun queryAsync(request: QueryRequest): CompletableFuture<QueryResponse> =
+        asyncClient.callAsync(request.tableName(), "Query") { query(request.withConsumedCapacity()) }
+
+    fun scanAsync(request: ScanRequest): CompletableFuture<ScanResponse> = if (config.getAllowTableScans())
+    {
+        asyncClient.callAsync(request.tableName(), "Scan") { scan(request.withConsumedCapacity()) }
+    } else
+    {
+        CompletableFuture<ScanResponse>().apply {
+            completeExceptionally(UnsupportedQueryException.QueryRequiresTableScan())
+        }
+    }
+
+    fun transactionWriteItemsAsync(request: TransactWriteItemsRequest): CompletableFuture<TransactWriteItemsResponse> =
+        asyncClient.callAsync(request.tableNames(), "TransactWriteItems", request.tableNameArray()) {
+            transactWriteItems(request.withConsumedCapacity())
+        }.afterWriting(request)
+
+    // Coalesced reads and cached items must not use a response that could have been read before a write completed
+    private inline fun <T> writing(request: DynamoDbRequest, block: () -> T): T = try
+    {
+        block()
+    } finally
+    {
+        onWrite(request)
+    }
+
+    private fun <T> CompletableFuture<T>.afterWriting(request: DynamoDbRequest): CompletableFuture<T> =
+        if (_coalescing == null && _itemCache == null)
+        {
+            this
+        } else
+        {
+            whenComplete { _, _ -> onWrite(request) }
+        }
 
-    private fun <T : DynamoDbResponse> DynamoDbClient.call(block: DynamoDbClient.() -> T): T
+    private fun onWrite(request: DynamoDbRequest)
     {
+        _coalescing?.let { coalescing -> request.writtenTableNames().forEach { coalescing.onWrite(it) } }
+        _itemCache?.onWrite(request)
+    }
+
+    // The table name identifies the request in metrics and circuit breakers, while capacity is taken from each one of
+    // the tables used by the request, which are only different for transactions
+    private fun <T : DynamoDbResponse> DynamoDbClient.call(
+        tableName: String,
+        operationName: String,
+        usedTableNames: Array<String> = arrayOf(tableName),
+        block: DynamoDbClient.() -> T
+    ): T
+    {
+        val reservedCapacity = acquireTableCapacity(tableName, operationName, usedTableNames)
+        val circuitBreaker = try
+        {
+            acquireRequestRate(tableName, operationName)
+            acquireCircuitBreaker(tableName, operationName)
+                .also { acquireConcurrency(tableName, operationName, it) }
+        } catch (e: Throwable)
+        {
+            releaseTableCapacity(operationName, reservedCapacity)
+            throw e
+        }
+        val startNanos = System.nanoTime()
+        var overloaded = false
+        try
+        {
+            val response = block()
+            circuitBreaker?.onResult(failed = false)
+            onCapacityConsumed(tableName, operationName, response, reservedCapacity)
+            _rateLimiter?.onSuccess()
+            _metrics?.recordSuccess(tableName, operationName, System.nanoTime() - startNanos, response)
+            return response
+        } catch (e: SdkException)
+        {
+            if (e !is DynamoDbException)
+            {
+                releaseTableCapacity(operationName, reservedCapacity)
+            }
+            val alarmException = e.toAlarmException()
+            overloaded = alarmException.isOverload()
+            circuitBreaker?.onResult(failed = alarmException.isServiceFailure())
+            _rateLimiter?.onFailure(alarmException.errorType())
+            _metrics?.recordError(tableName, operationName, System.nanoTime() - startNanos, alarmException.errorType())
+            throw alarmException
+        } catch (e: Throwable)
+        {
+            // Not a response from DynamoDB, so it can't tell whether it's healthy
+            circuitBreaker?.releasePermission()
+            releaseTableCapacity(operationName, reservedCapacity)
+            throw e
+        } finally
+        {
+            releaseConcurrency(tableName, operationName, startNanos, overloaded)
+        }
+    }
+
+    private fun <T : DynamoDbResponse> DynamoDbAsyncClient.callAsync(
+        tableName: String,
+        operationName: String,
+        usedTableNames: Array<String> = arrayOf(tableName),
+        block: DynamoDbAsyncClient.() -> CompletableFuture<T>
+    ): CompletableFuture<T>
+    {
+        val result = CompletableFuture<T>()
+        var reservedCapacity = setOf<String>()
+        val circuitBreaker: CircuitBreaker?
         try
         {
-            return block()
-        } catch (e: DynamoDbException)
+            reservedCapacity = acquireTableCapacity(tableName, operationName, usedTableNames)
+            acquireRequestRate(tableName, operationName)
+            circuitBreaker = acquireCircuitBreaker(tableName, operationName)
+            acquireConcurrency(tableName, operationName, circuitBreaker)
+        } catch (e: Exception)
+        {
+            releaseTableCapacity(operationName, reservedCapacity)
+            result.completeExceptionally(e)
+            return result
+        }
+        val startNanos = System.nanoTime()
+        val future = try
+        {
+            block()
+        } catch (e: SdkException)
         {
-            when
+            if (e !is DynamoDbException)
+            {
+                releaseTableCapacity(operationName, reservedCapacity)
+            }
+            val alarmException = e.toAlarmException()
+            releaseConcurrency(tableName, operationName, startNanos, alarmException.isOverload())
+            circuitBreaker?.onResult(failed = alarmException.isServiceFailure())
+            _rateLimiter?.onFailure(alarmException.errorType())
+            result.completeExceptionally(alarmException)
+            return result
+        } catch (e: Exception)
+        {
+            releaseConcurrency(tableName, operationName, startNanos, overloaded = false)
+            circuitBreaker?.releasePermission()
+            releaseTableCapacity(operationName, reservedCapacity)
+            result.completeExceptionally(e)
+            return result
+        }
+        future.whenComplete { response, throwable ->
+            if (throwable == null)
+            {
+                releaseConcurrency(tableName, operationName, startNanos, overloaded = false)
+                circuitBreaker?.onResult(failed = false)
+                onCapacityConsumed(tableName, operationName, response, reservedCapacity)
+                _rateLimiter?.onSuccess()
+                _metrics?.recordSuccess(tableName, operationName, System.nanoTime() - startNanos, response)
+                result.complete(response)
+            } else
             {
-                e.awsErrorDetails()?.errorCode() == "ConditionalCheckFailedException" -> throw e
-                e.awsErrorDetails()
-                    ?.errorCode() == "UnrecognizedClientException" -> throw ExternalServiceFailedAuthenticationAlarmException(
-                    e
+                val failure = throwable.unwrap()
+                if (failure !is DynamoDbException)
+                {
+                    releaseTableCapacity(operationName, reservedCapacity)
+                }
+                val alarmException = failure.toAlarmException()
+                releaseConcurrency(tableName, operationName, startNanos, alarmException.isOverload())
+                circuitBreaker?.onResult(failed = alarmException.isServiceFailure())
+                _rateLimiter?.onFailure(alarmException.errorType())
+                _metrics?.recordError(
+                    tableName, operationName, System.nanoTime() - startNanos, alarmException.errorType()
                 )
-                e.statusCode() >= 500 -> throw ExternalServiceFailedConnectionAlarmException(e)
-                else -> throw ExternalServiceFailedCommunicationAlarmException(e)
+                result.completeExceptionally(alarmException)
             }
-        } catch (e: SdkClientException)
+        }
+        return result
+    }
+
+    /*
+     * Takes capacity from the limiter of each one of the tables that has one, waiting for it if needed.
+     * Returns the names of the tables where capacity was reserved.
+     */
+    private fun acquireTableCapacity(
+        tableName: String,
+        operationName: String,
+        usedTableNames: Array<String>
+    ): Set<String>
+    {
+        if (_tableRateLimiters.isEmpty())
         {
-            if (e.cause is HttpHostConnectException)
+            return setOf()
+        }
+        val reserved = mutableSetOf<String>()
+        usedTableNames.forEach { usedTableName ->
+            val tableRateLimiter = _tableRateLimiters[usedTableName] ?: return@forEach
+            try
+            {
+                tableRateLimiter.acquire(operationName)
+            } catch (e: RateLimitExceededException)
             {
-                throw ExternalServiceFailedConnectionAlarmException(e)
+                releaseTableCapacity(operationName, reserved)
+                _metrics?.recordRejected(tableName, operationName, "RateLimitExceeded")
+                throw ExternalServiceFailedCommunicationAlarmException(e)
+            } catch (e: Throwable)
+            {
+                releaseTableCapacity(operationName, reserved)
+                throw e
             }
-            // Not really sure what the cause is, so let's classify it as a communication issue
+            reserved.add(usedTableName)
+        }
+        return reserved
+    }
+
+    // Gives back the capacity taken for a request that wasn't sent, or that failed without a response from DynamoDB
+    private fun releaseTableCapacity(operationName: String, reservedCapacity: Set<String>)
+    {
+        reservedCapacity.forEach { _tableRateLimiters[it]?.release(operationName) }
+    }
+
+    /*
+     * Waits for the request's turn, if DynamoDB is throttling requests and adaptive rates are enabled.
+     * Done before obtaining a circuit breaker permission, which would otherwise be held while waiting.
+     */
+    private fun acquireRequestRate(tableName: String, operationName: String)
+    {
+        try
+        {
+            _rateLimiter?.acquire()
+        } catch (e: AdaptiveRateLimitExceededException)
+        {
+            _metrics?.recordRejected(tableName, operationName, "AdaptiveRateLimitExceeded")
             throw ExternalServiceFailedCommunicationAlarmException(e)
-        } catch (e: SdkException)
+        }
+    }
+
+    private fun onCapacityConsumed(
+        tableName: String,
+        operationName: String,
+        response: DynamoDbResponse,
+        reservedCapacity: Set<String>
+    )
+    {
+        if (_tableRateLimiters.isEmpty())
+        {
+            return
+        }
+        response.consumedCapacities().forEach { capacity ->
+            val units = capacity.capacityUnits() ?: return@forEach
+            val consumingTableName = capacity.tableName() ?: tableName
+            _tableRateLimiters[consumingTableName]
+                ?.onConsumed(operationName, units, consumingTableName in reservedCapacity)
+        }
+    }
+
+    /*
+     * Waits for the number of in-flight requests to be below the concurrency limit, if there is one.
+     * Otherwise, sheds the request. In both cases, if the request isn't sent, the permission obtained from the
+     * circuit breaker is given back.
+     */
+    private fun acquireConcurrency(tableName: String, operationName: String, circuitBreaker: CircuitBreaker?)
+    {
+        try
+        {
+            _concurrencyLimiter?.acquire()
+        } catch (e: ConcurrencyLimitExceededException)
         {
+            circuitBreaker?.releasePermission()
+            _metrics?.recordRejected(tableName, operationName, "ConcurrencyLimitExceeded")
             throw ExternalServiceFailedCommunicationAlarmException(e)
+        } catch (e: Throwable)
+        {
+            circuitBreaker?.releasePermission()
+            throw e
         }
     }
 
+    // The latency is compared with the one of other requests on the same table and operation
+    private fun releaseConcurrency(tableName: String, operationName: String, startNanos: Long, overloaded: Boolean) =
+        _concurrencyLimiter?.release("$tableName/$operationName", System.nanoTime() - startNanos, overloaded)
+
+    /*
+     * Returns the circuit breaker for the table and operation, after obtaining permission to send a request,
+     * or null if circuit breakers are not enabled.
+     */
+    private fun acquireCircuitBreaker(tableName: String, operationName: String): CircuitBreaker?
+    {
+        val breakerConfig = _circuitBreakerConfig ?: return null
+        val circuitBreaker = _circuitBreakers.computeIfAbsent(Pair(tableName, operationName)) {
+            CircuitBreaker(
+                "$tableName/$operationName",
+                breakerConfig.failureRateThreshold,
+                breakerConfig.minimumRequests,
+                TimeUnit.SECONDS.toNanos(breakerConfig.windowDuration),
+                TimeUnit.SECONDS.toNanos(breakerConfig.openDuration),
+                breakerConfig.halfOpenProbes
+            )
+        }
+        try
+        {
+            circuitBreaker.acquirePermission()
+        } catch (e: CircuitBreakerOpenException)
+        {
+            _metrics?.recordRejected(tableName, operationName, "CircuitBreakerOpen")
+            throw ExternalServiceFailedConnectionAlarmException(e)
+        }
+        return circuitBreaker
+    }
+
+    // Consumed capacity is only requested when metrics or capacity limits are enabled,
+    // and if not already requested by the caller
+
+    private fun GetItemRequest.withConsumedCapacity() = if (requestsConsumedCapacity(returnConsumedCapacity()))
+        toBuilder().returnConsumedCapacity(ReturnConsumedCapacity.TOTAL).build() else this
+
+    private fun PutItemRequest.withConsumedCapacity() = if (requestsConsumedCapacity(returnConsumedCapacity()))
+        toBuilder().returnConsumedCapacity(ReturnConsumedCapacity.TOTAL).build() else this
+
+    private fun UpdateItemRequest.withConsumedCapacity() = if (requestsConsumedCapacity(returnConsumedCapacity()))
+        toBuilder().returnConsumedCapacity(ReturnConsumedCapacity.TOTAL).build() else this
+
+    private fun DeleteItemRequest.withConsumedCapacity() = if (requestsConsumedCapacity(returnConsumedCapacity()))
+        toBuilder().returnConsumedCapacity(ReturnConsumedCapacity.TOTAL).build() else this
+
+    private fun QueryRequest.withConsumedCapacity() = if (requestsConsumedCapacity(returnConsumedCapacity()))
+        toBuilder().returnConsumedCapacity(ReturnConsumedCapacity.TOTAL).build() else this
+
+    private fun ScanRequest.withConsumedCapacity() = if (requestsConsumedCapacity(returnConsumedCapacity()))
+        toBuilder().returnConsumedCapacity(ReturnConsumedCapacity.TOTAL).build() else this
+
+    private fun TransactWriteItemsRequest.withConsumedCapacity() =
+        if (requestsConsumedCapacity(returnConsumedCapacity()))
+            toBuilder().returnConsumedCapacity(ReturnConsumedCapacity.TOTAL).build() else this
+
+    private fun requestsConsumedCapacity(current: ReturnConsumedCapacity?) =
+        (_metrics != null || _tableRateLimiters.isNotEmpty()) && (current == null || current == ReturnConsumedCapacity.NONE)
+
     override fun close()
     {
         client.close()
+        if (_lazyAsyncClient.isInitialized())
+        {
+            asyncClient.close()
+        }
+        _credentialsResources.forEach { it.close() }
+        if (_lazyScanExecutor.isInitialized())
+        {
+            scanExecutor.shutdownNow()
+        }
+        if (_lazyQueryExecutor.isInitialized())
+        {
+            queryExecutor.shutdownNow()
+        }
+        if (_lazyReadAheadExecutor.isInitialized())
+        {
+            _lazyReadAheadExecutor.value.shutdownNow()
+        }
+        _localCaches.values.forEach { it.clear() }
+        _itemCache?.clear()
+        _metrics?.close()
     }
 
     companion object
     {
         val logger: Logger = LoggerFactory.getLogger(DynamoDBClient::class.java)
+
+        private const val ASSUME_ROLE_DURATION_IN_SECONDS = 3600
+
+        // Classifies a DynamoDB SDK exception into the alarm exception types, or returns it unchanged if it must
+        // be handled by the caller.
+        private fun Throwable.toAlarmException(): Throwable = when (this)
+        {
+            is DynamoDbException -> when
+            {
+                awsErrorDetails()?.errorCode() == "ConditionalCheckFailedException" -> this
+                awsErrorDetails()?.errorCode() == "UnrecognizedClientException" ->
+                    ExternalServiceFailedAuthenticationAlarmException(this)
+                statusCode() >= 500 -> ExternalServiceFailedConnectionAlarmException(this)
+                else -> ExternalServiceFailedCommunicationAlarmException(this)
+            }
+            // Both the Apache and the Netty based clients signal connection establishment failures with a
+            // ConnectException cause. Not really sure what other causes are, so classify them as communication issues.
+            is SdkClientException -> if (cause is ConnectException)
+            {
+                ExternalServiceFailedConnectionAlarmException(this)
+            } else
+            {
+                ExternalServiceFailedCommunicationAlarmException(this)
+            }
+            is SdkException -> ExternalServiceFailedCommunicationAlarmException(this)
+            else -> this
+        }
+
+        // Failures that indicate that DynamoDB, or the path to it, is degraded: server errors, connection
+        // failures and client side errors such as timeouts. Errors caused by the request itself are not included.
+        private fun Throwable.isServiceFailure() = this is ExternalServiceFailedConnectionAlarmException ||
+                (this is ExternalServiceFailedCommunicationAlarmException && cause is SdkClientException)
+
+        // Failures that indicate that DynamoDB can't keep up with the current load
+        private fun Throwable.isOverload() =
+            isServiceFailure() || errorType() in AdaptiveRateLimiter.THROTTLING_ERROR_CODES
+
+        // Classification used by the error metrics
+        private fun Throwable.errorType(): String = when (this)
+        {
+            is DynamoDbException -> awsErrorDetails()?.errorCode() ?: javaClass.simpleName
+            is ExternalServiceFailedAuthenticationAlarmException -> "Authentication"
+            is ExternalServiceFailedConnectionAlarmException -> "Connection"
+            is ExternalServiceFailedCommunicationAlarmException -> (cause as? DynamoDbException)
+                ?.awsErrorDetails()?.errorCode() ?: "Communication"
+            else -> javaClass.simpleName
+        }
+
+        // Transactions can span several tables, which are all used as the metrics key
+        private fun TransactWriteItemsRequest.tableNames(): String = tableNameArray()
+            .sorted()
+            .joinToString("+")
+
+        private fun TransactWriteItemsRequest.tableNameArray(): Array<String> = transactItems()
+            .mapNotNull {
+                it.put()?.tableName() ?: it.update()?.tableName() ?: it.delete()?.tableName()
+                ?: it.conditionCheck()?.tableName()
+            }
+            .distinct()
+            .toTypedArray()
+
+        private fun DynamoDbRequest.writtenTableNames(): Array<String> = when (this)
+        {
+            is PutItemRequest -> arrayOf(tableName())
+            is UpdateItemRequest -> arrayOf(tableName())
+            is DeleteItemRequest -> arrayOf(tableName())
+            is TransactWriteItemsRequest -> tableNameArray()
+            else -> arrayOf()
+        }
+
+        private fun DynamoDBDataAccessProviderConfiguration.CachedTable.toRegion(
+            tableName: String,
+            vararg keyAttributes: DynamoDBAttribute<*>
+        ) = ItemCacheManager.Region(
+            tableName,
+            keyAttributes.map { it.name },
+            TimeUnit.SECONDS.toMillis(ttl),
+            maxMemory * 1024,
+            cacheConsistentReads
+        )
+
+        // Waits for the result, throwing the same exceptions as the blocking operations
+        private fun <T> Future<T>.await(): T = try
+        {
+            get()
+        } catch (e: ExecutionException)
+        {
+            throw e.unwrap()
+        }
+
+        // Futures wrap the original exception
+        private fun Throwable.unwrap(): Throwable =
+            if ((this is CompletionException || this is ExecutionException) && cause != null)
+            {
+                cause!!.unwrap()
+            } else
+            {
+                this
+            }
     }
 }
@@ -516,13 +516,11 @@ class DynamoDBDeviceDataAccessProvider(
             .expressionAttributeValues(mapOf(DeviceTable.pk.toExpressionNameValuePair("id#")))
             .build()
 
-        val all = scanSequence(request, _dynamoDBClient).toList()
-
-        val page = all.drop(validatedStartIndex).take(validatedCount)
+        val page = scanPageWithTotal(request, _dynamoDBClient, validatedStartIndex, validatedCount)
 
         return ResourceQueryResult(
-            page.map { item -> item.toDeviceAttributes() },
-            all.size.toLong(),
+            page.items.map { item -> item.toDeviceAttributes() },
+            page.totalCount,
             startIndex,
             count
         )
@@ -44,6 +44,8 @@ import software.amazon.awssdk.services.dynamodb.model.PutItemRequest
 import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest
 import java.time.Instant.now
 import java.time.Instant.ofEpochSecond
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
 
 class DynamoDBDynamicallyRegisteredClientDataAccessProvider(
     configuration: DynamoDBDataAccessProviderConfiguration,
@@ -52,7 +54,13 @@ class DynamoDBDynamicallyRegisteredClientDataAccessProvider(
 {
     private val _jsonHandler = configuration.getJsonHandler()
 
-    private object DcrTable : Table("curity-dynamic-clients")
+    private val _cacheConfiguration: DynamoDBDataAccessProviderConfiguration.DynamicClientCache? =
+        configuration.getDynamicClientCache().orElse(null)
+    private val _cache: LocalCache<String, CachedClient>? = _cacheConfiguration?.let {
+        _dynamoDBClient.localCache(CACHE_NAME, it.maxEntries)
+    }
+
+    object DcrTable : Table("curity-dynamic-clients")
     {
         val clientId = StringAttribute("clientId")
         val clientSecret = StringAttribute("clientSecret")
@@ -146,20 +154,151 @@ class DynamoDBDynamicallyRegisteredClientDataAccessProvider(
     {
         logger.debug("Getting dynamic client with id: {}", clientId)
 
+        val cached = _cache?.get(clientId)
+        if (cached != null)
+        {
+            refreshInBackgroundIfNeeded(clientId, cached)
+            return cached.attributes
+        }
+        val writeGeneration = _cache?.writeGeneration
+
+        val response = _dynamoDBClient.getItem(getItemRequest(clientId))
+
+        if (!response.hasItem() || response.item().isEmpty())
+        {
+            return null
+        }
+
+        return response.item().toAttributes().also {
+            cache(clientId, it, DcrTable.updated.from(response.item()), writeGeneration)
+        }
+    }
+
+    private fun getItemRequest(clientId: String) = GetItemRequest.builder()
+        .tableName(DcrTable.name)
+        .key(DcrTable.key(clientId))
+        .consistentRead(true)
+        .build()
+
+    /*
+     * A cached client, with the value of the 'updated' attribute when it was read.
+     */
+    private class CachedClient(
+        val attributes: DynamicallyRegisteredClientAttributes,
+        val updated: Long,
+        val loadedAtMillis: Long,
+        val validatedAtMillis: Long
+    )
+    {
+        val refreshing = AtomicBoolean(false)
+
+        // 'updated' has a resolution of seconds, so a change made in the same second as the load could
+        // go unnoticed when only comparing it
+        fun isCurrent(currentUpdated: Long) =
+            currentUpdated == updated && TimeUnit.MILLISECONDS.toSeconds(loadedAtMillis) > updated + 1
+    }
+
+    private fun cache(
+        clientId: String,
+        attributes: DynamicallyRegisteredClientAttributes,
+        updated: Long,
+        writeGeneration: Long?
+    )
+    {
+        val cacheConfiguration = _cacheConfiguration ?: return
+        val now = System.currentTimeMillis()
+        _cache?.put(
+            clientId,
+            CachedClient(attributes, updated, now, now),
+            now + TimeUnit.SECONDS.toMillis(cacheConfiguration.maxStaleness),
+            writeGeneration
+        )
+    }
+
+    // Refreshed entries are only cached if the entry wasn't invalidated or replaced while being refreshed
+    private fun replace(clientId: String, cached: CachedClient, refreshed: CachedClient)
+    {
+        val cacheConfiguration = _cacheConfiguration ?: return
+        _cache?.replace(
+            clientId,
+            cached,
+            refreshed,
+            refreshed.validatedAtMillis + TimeUnit.SECONDS.toMillis(cacheConfiguration.maxStaleness)
+        )
+    }
+
+    /*
+     * Checks if the cached client changed, before it expires, by only reading its 'updated' attribute.
+     * The full client is only read again if it changed.
+     */
+    private fun refreshInBackgroundIfNeeded(clientId: String, cached: CachedClient)
+    {
+        val cacheConfiguration = _cacheConfiguration ?: return
+        val now = System.currentTimeMillis()
+        if (now - cached.validatedAtMillis < TimeUnit.SECONDS.toMillis(cacheConfiguration.refreshAfter)
+            || !cached.refreshing.compareAndSet(false, true))
+        {
+            return
+        }
+
         val request = GetItemRequest.builder()
             .tableName(DcrTable.name)
             .key(DcrTable.key(clientId))
+            .projectionExpression(DcrTable.updated.hashName)
+            .expressionAttributeNames(mapOf(DcrTable.updated.toNamePair()))
             .consistentRead(true)
             .build()
 
-        val response = _dynamoDBClient.getItem(request)
+        _dynamoDBClient.getItemAsync(request).whenComplete { response, throwable ->
+            refreshing(clientId, cached, throwable) {
+                val updated = response.item()?.let { DcrTable.updated.optionalFrom(it) }
+                when
+                {
+                    updated == null -> _cache?.invalidate(clientId)
+                    cached.isCurrent(updated) -> replace(
+                        clientId,
+                        cached,
+                        CachedClient(cached.attributes, updated, cached.loadedAtMillis, System.currentTimeMillis())
+                    )
+                    else -> reloadInBackground(clientId, cached)
+                }
+            }
+        }
+    }
 
-        if (!response.hasItem() || response.item().isEmpty())
-        {
-            return null
+    private fun reloadInBackground(clientId: String, cached: CachedClient)
+    {
+        _dynamoDBClient.getItemAsync(getItemRequest(clientId)).whenComplete { response, throwable ->
+            refreshing(clientId, cached, throwable) {
+                if (!response.hasItem() || response.item().isEmpty())
+                {
+                    _cache?.invalidate(clientId)
+                } else
+                {
+                    val now = System.currentTimeMillis()
+                    val item = response.item()
+                    replace(clientId, cached, CachedClient(item.toAttributes(), DcrTable.updated.from(item), now, now))
+                }
+            }
         }
+    }
 
-        return response.item().toAttributes()
+    // Runs a step of a background refresh, allowing the entry to be refreshed again later if it fails
+    private inline fun refreshing(clientId: String, cached: CachedClient, throwable: Throwable?, step: () -> Unit)
+    {
+        val failure = throwable ?: try
+        {
+            step()
+            null
+        } catch (e: Exception)
+        {
+            e
+        }
+        if (failure != null)
+        {
+            logger.debug("Unable to refresh dynamic client '{}': {}", clientId, failure.message)
+            cached.refreshing.set(false)
+        }
     }
 
     override fun create(dynamicallyRegisteredClientAttributes: DynamicallyRegisteredClientAttributes)
@@ -221,6 +360,8 @@ class DynamoDBDynamicallyRegisteredClientDataAccessProvider(
             .key(DcrTable.key(dynamicallyRegisteredClientAttributes.clientId))
             .apply { builder.applyTo(this) }
 
+        // Also invalidated after the update, so that reads overlapping it are not cached
+        _cache?.invalidate(dynamicallyRegisteredClientAttributes.clientId)
         try
         {
             _dynamoDBClient.updateItem(requestBuilder.build())
@@ -229,6 +370,9 @@ class DynamoDBDynamicallyRegisteredClientDataAccessProvider(
             // this exceptions means the entry does not exists, which should be signalled with an exception
             throw RuntimeException(
                 "Client with ID '${dynamicallyRegisteredClientAttributes.getClientId()}' could not be updated.")
+        } finally
+        {
+            _cache?.invalidate(dynamicallyRegisteredClientAttributes.clientId)
         }
     }
 
@@ -241,11 +385,20 @@ class DynamoDBDynamicallyRegisteredClientDataAccessProvider(
             .key(DcrTable.key(clientId))
             .build()
 
-        _dynamoDBClient.deleteItem(request)
+        _cache?.invalidate(clientId)
+        try
+        {
+            _dynamoDBClient.deleteItem(request)
+        } finally
+        {
+            _cache?.invalidate(clientId)
+        }
     }
 
     companion object
     {
         private val logger: Logger = LoggerFactory.getLogger(DynamoDBDynamicallyRegisteredClientDataAccessProvider::class.java)
+
+        private const val CACHE_NAME = "dynamic-clients"
     }
 }
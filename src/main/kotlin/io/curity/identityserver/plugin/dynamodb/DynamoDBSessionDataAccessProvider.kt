@@ -24,8 +24,8 @@ import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedExce
 import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest
 import software.amazon.awssdk.services.dynamodb.model.GetItemRequest
 import software.amazon.awssdk.services.dynamodb.model.PutItemRequest
-import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest
 import java.time.Instant
+import java.util.concurrent.TimeUnit
 
 class DynamoDBSessionDataAccessProvider(
     private val _dynamoDBClient: DynamoDBClient,
@@ -42,8 +42,18 @@ class DynamoDBSessionDataAccessProvider(
         fun key(id: String) = mapOf(this.id.toNameValuePair(id))
     }
 
+    private val _cacheConfiguration: DynamoDBDataAccessProviderConfiguration.SessionCache? =
+        _configuration.getSessionCache().orElse(null)
+    private val _cache: LocalCache<String, Session>? = _cacheConfiguration?.let {
+        _dynamoDBClient.localCache(CACHE_NAME, it.maxEntries)
+    }
+    private val _cacheMaxStalenessMillis = TimeUnit.SECONDS.toMillis(_cacheConfiguration?.maxStaleness ?: 0)
+
     override fun getSessionById(id: String): Session?
     {
+        _cache?.get(id)?.let { return it }
+        val writeGeneration = _cache?.writeGeneration
+
         val request = GetItemRequest.builder()
             .tableName(SessionTable.name)
             .key(SessionTable.key(id))
@@ -63,7 +73,7 @@ class DynamoDBSessionDataAccessProvider(
             SessionTable.id.from(item),
             Instant.ofEpochSecond(SessionTable.expiresAt.from(item)),
             SessionTable.data.from(item)
-        )
+        ).also { cache(it, writeGeneration) }
     }
 
     override fun insertSession(session: Session)
@@ -80,6 +90,7 @@ class DynamoDBSessionDataAccessProvider(
             .item(item)
             .conditionExpression("attribute_not_exists(${SessionTable.id})")
             .build()
+        val writeGeneration = _cache?.writeGeneration
         try
         {
             _dynamoDBClient.putItem(request)
@@ -87,6 +98,7 @@ class DynamoDBSessionDataAccessProvider(
         {
             throw ConflictException("There is already a session with the same id.")
         }
+        cache(session, writeGeneration)
     }
 
     override fun updateSession(updatedSession: Session)
@@ -106,20 +118,16 @@ class DynamoDBSessionDataAccessProvider(
             .item(item)
             .build()
 
-        _dynamoDBClient.putItem(request)
+        // The updated session isn't cached, since a concurrent update of the same session could be cached after it
+        // while being the one overwritten in DynamoDB
+        invalidating(updatedSession.id) { _dynamoDBClient.putItem(request) }
     }
 
     override fun updateSessionExpiration(id: String, expiresAt: Instant)
     {
-        val request = UpdateItemRequest.builder()
-            .tableName(SessionTable.name)
-            .key(SessionTable.key(id))
-            .conditionExpression("attribute_exists(${SessionTable.id})")
-            .updateExpression(
-                "SET ${SessionTable.expiresAt} = ${SessionTable.expiresAt.colonName}" +
-                        ", ${SessionTable.deletableAt} = ${SessionTable.deletableAt.colonName}"
-            )
-            .expressionAttributeValues(
+        val request = expirationUpdate
+            .request(
+                SessionTable.key(id),
                 mapOf(
                     SessionTable.expiresAt.toExpressionNameValuePair(expiresAt.epochSecond),
                     SessionTable.deletableAt.toExpressionNameValuePair(getDeletableAt(expiresAt))
@@ -129,7 +137,7 @@ class DynamoDBSessionDataAccessProvider(
 
         try
         {
-            _dynamoDBClient.updateItem(request)
+            invalidating(id) { _dynamoDBClient.updateItem(request) }
         } catch (_: ConditionalCheckFailedException)
         {
             // this exceptions means the entry does not exists, which isn't an error
@@ -144,7 +152,31 @@ class DynamoDBSessionDataAccessProvider(
             .key(SessionTable.key(id))
             .build()
 
-        _dynamoDBClient.deleteItem(request)
+        invalidating(id) { _dynamoDBClient.deleteItem(request) }
+    }
+
+    // Invalidates the cached session both before and after the write, so that reads overlapping it are not cached
+    private inline fun invalidating(id: String, write: () -> Unit)
+    {
+        _cache?.invalidate(id)
+        try
+        {
+            write()
+        } finally
+        {
+            _cache?.invalidate(id)
+        }
+    }
+
+    // Cached sessions are used until they expire, or for the maximum staleness, whatever happens first
+    private fun cache(session: Session, writeGeneration: Long?)
+    {
+        _cache?.put(
+            session.id,
+            session,
+            minOf(session.expiresAt.toEpochMilli(), System.currentTimeMillis() + _cacheMaxStalenessMillis),
+            writeGeneration
+        )
     }
 
     private fun getDeletableAt(expiration: Instant) =
@@ -153,5 +185,14 @@ class DynamoDBSessionDataAccessProvider(
     companion object
     {
         val _logger = LoggerFactory.getLogger(DynamoDBSessionDataAccessProvider.javaClass)
+
+        private const val CACHE_NAME = "sessions"
+
+        private val expirationUpdate = PreparedUpdate(
+            SessionTable,
+            "SET ${SessionTable.expiresAt} = ${SessionTable.expiresAt.colonName}" +
+                    ", ${SessionTable.deletableAt} = ${SessionTable.deletableAt.colonName}",
+            "attribute_exists(${SessionTable.id})"
+        )
     }
 }
@@ -16,8 +16,8 @@
 package io.curity.identityserver.plugin.dynamodb
 
 import io.curity.identityserver.plugin.dynamodb.configuration.DynamoDBDataAccessProviderConfiguration
-import io.curity.identityserver.plugin.dynamodb.query.DynamoDBQueryBuilder
 import io.curity.identityserver.plugin.dynamodb.query.Index
+import io.curity.identityserver.plugin.dynamodb.query.PreparedQueryPlan
 import io.curity.identityserver.plugin.dynamodb.query.QueryPlan
 import io.curity.identityserver.plugin.dynamodb.query.QueryPlanner
 import io.curity.identityserver.plugin.dynamodb.query.TableQueryCapabilities
@@ -52,6 +52,7 @@ import java.time.Instant
 import java.time.ZoneId
 import java.time.ZonedDateTime
 import java.util.UUID
+import java.util.concurrent.TimeUnit
 
 /**
  * The users table has three additional uniqueness restrictions, other than the accountId:
@@ -94,6 +95,12 @@ class DynamoDBUserAccountDataAccessProvider(
 {
     private val jsonHandler = _configuration.getJsonHandler()
 
+    private val _cacheConfiguration: DynamoDBDataAccessProviderConfiguration.AccountCache? =
+        _configuration.getAccountCache().orElse(null)
+    private val _cache: LocalCache<String, CachedAccount>? = _cacheConfiguration?.let {
+        _client.localCache(CACHE_NAME, it.maxEntries)
+    }
+
     override fun getById(
         accountId: String
     ): AccountAttributes? = fromAttributes(getById(accountId, ResourceQuery.Exclusions.none()))
@@ -142,25 +149,8 @@ class DynamoDBUserAccountDataAccessProvider(
         key: UniqueAttribute<String>,
         keyValue: String,
         attributesEnumeration: ResourceQuery.AttributesEnumeration?
-    ): ResourceAttributes<*>?
-    {
-        val requestBuilder = GetItemRequest.builder()
-            .tableName(AccountsTable.name)
-            .key(mapOf(AccountsTable.pk.uniqueKeyEntryFor(key, keyValue)))
-            .consistentRead(true)
-
-        val request = requestBuilder.build()
-
-        val response = _client.getItem(request)
-
-        return if (response.hasItem())
-        {
-            response.item().toAccountAttributes(attributesEnumeration)
-        } else
-        {
-            null
-        }
-    }
+    ): ResourceAttributes<*>? =
+        getItem(key.uniquenessValueFrom(keyValue), allowTrusted = true)?.toAccountAttributes(attributesEnumeration)
 
     override fun create(accountAttributes: AccountAttributes): AccountAttributes
     {
@@ -239,6 +229,8 @@ class DynamoDBUserAccountDataAccessProvider(
             .transactItems(transactionItems)
             .build()
 
+        // Also invalidated after the write, so that reads overlapping it are not cached
+        invalidateCachedAccount(commonItem)
         try
         {
             _client.transactionWriteItems(request)
@@ -251,12 +243,17 @@ class DynamoDBUserAccountDataAccessProvider(
                 )
             }
             throw ex
+        } finally
+        {
+            // Removes entries for the same unique values that could be left from a deleted account
+            invalidateCachedAccount(commonItem)
         }
 
         return commonItem.toAccountAttributes()
     }
 
-    override fun delete(accountId: String) = retry("delete", N_OF_ATTEMPTS) { tryDelete(accountId) }
+    override fun delete(accountId: String) =
+        retry("delete", N_OF_ATTEMPTS, _client.retryBackoffPolicy) { tryDelete(accountId) }
 
     private fun tryDelete(accountId: String): TransactionAttemptResult<Unit>
     {
@@ -343,6 +340,8 @@ class DynamoDBUserAccountDataAccessProvider(
             .transactItems(transactionItems)
             .build()
 
+        // Also invalidated after the write, so that reads overlapping it are not cached
+        invalidateCachedAccount(item)
         try
         {
             _client.transactionWriteItems(request)
@@ -356,6 +355,9 @@ class DynamoDBUserAccountDataAccessProvider(
                 )
             }
             throw ex
+        } finally
+        {
+            invalidateCachedAccount(item)
         }
     }
 
@@ -387,7 +389,7 @@ class DynamoDBUserAccountDataAccessProvider(
     }
 
     private fun updateAccount(accountId: String, accountAttributes: AccountAttributes) =
-        retry("updateAccount", N_OF_ATTEMPTS) {
+        retry("updateAccount", N_OF_ATTEMPTS, _client.retryBackoffPolicy) {
             val observedItem = getItemByAccountId(accountId) ?: return@retry TransactionAttemptResult.Success(null)
             tryUpdateAccount(accountId, accountAttributes, observedItem)
         }
@@ -444,6 +446,9 @@ class DynamoDBUserAccountDataAccessProvider(
             accountAttributes.phoneNumbers.primaryOrFirst?.significantValue
         )
 
+        // Also invalidated after the write, so that reads overlapping it are not cached
+        invalidateCachedAccount(observedItem)
+        invalidateCachedAccount(commonItem)
         try
         {
             _client.transactionWriteItems(updateBuilder.build())
@@ -455,6 +460,10 @@ class DynamoDBUserAccountDataAccessProvider(
                 return TransactionAttemptResult.Failure(ex)
             }
             throw ex
+        } finally
+        {
+            invalidateCachedAccount(observedItem)
+            invalidateCachedAccount(commonItem)
         }
     }
 
@@ -463,7 +472,7 @@ class DynamoDBUserAccountDataAccessProvider(
         attributesEnumeration: ResourceQuery.AttributesEnumeration
     ): ResourceAttributes<*>?
     {
-        retry("updateAccount", N_OF_ATTEMPTS)
+        retry("updateAccount", N_OF_ATTEMPTS, _client.retryBackoffPolicy)
         {
             val observedItem = getItemByAccountId(accountId) ?: return@retry TransactionAttemptResult.Success(null)
             val observedAttributes = observedItem.toAccountAttributes()
@@ -501,7 +510,7 @@ class DynamoDBUserAccountDataAccessProvider(
 
         _logger.debug("Received request to update password for username : {}", username)
 
-        retry("updatePassword", N_OF_ATTEMPTS)
+        retry("updatePassword", N_OF_ATTEMPTS, _client.retryBackoffPolicy)
         {
             val observedItem = getItemByUsername(username)
             if (observedItem == null)
@@ -556,6 +565,8 @@ class DynamoDBUserAccountDataAccessProvider(
                 maybePhone
             )
 
+            // Also invalidated after the write, so that reads overlapping it are not cached
+            invalidateCachedAccount(observedItem)
             try
             {
                 _client.transactionWriteItems(updateBuilder.build())
@@ -567,6 +578,9 @@ class DynamoDBUserAccountDataAccessProvider(
                     return@retry TransactionAttemptResult.Failure(ex)
                 }
                 throw ex
+            } finally
+            {
+                invalidateCachedAccount(observedItem)
             }
 
         }
@@ -626,32 +640,104 @@ class DynamoDBUserAccountDataAccessProvider(
         return false
     }
 
-    private fun getItemByAccountId(accountId: String): DynamoDBItem?
+    // Items read before a write are never used from the cache without checking their version,
+    // so that the optimistic concurrency conditions don't fail on every attempt
+    private fun getItemByAccountId(accountId: String): DynamoDBItem? =
+        getItem(AccountsTable.accountId.uniquenessValueFrom(accountId), allowTrusted = false)
+
+    private fun getItemByUsername(userName: String): DynamoDBItem? =
+        getItem(AccountsTable.userName.uniquenessValueFrom(userName), allowTrusted = false)
+
+    /*
+     * A cached account item, with the version and account ID used to check that it is still current.
+     */
+    private class CachedAccount(
+        val item: DynamoDBItem,
+        val accountId: String,
+        val version: Long,
+        val loadedAtMillis: Long,
+        val validatedAtMillis: Long
+    )
+
+    /*
+     * Gets the item with the given primary key value, which is the account ID, username, email or phone number
+     * with its prefix.
+     * A cached item is used without reading from DynamoDB inside the trust window, if allowed, and otherwise after
+     * checking, with a read of only the version and account ID, that the account didn't change.
+     * Items read while the account is written are not cached, since they can be the previous ones.
+     */
+    private fun getItem(pkValue: String, allowTrusted: Boolean): DynamoDBItem?
     {
-        val requestBuilder = GetItemRequest.builder()
-            .tableName(AccountsTable.name)
-            .key(AccountsTable.keyFromAccountId(accountId))
-            .consistentRead(true)
+        val cacheConfiguration = _cacheConfiguration ?: return readItem(pkValue)
+        val cached = _cache?.get(pkValue)
+        val writeGeneration = _cache?.writeGeneration
+        if (cached != null)
+        {
+            val now = System.currentTimeMillis()
+            val trustWindowMillis = TimeUnit.SECONDS.toMillis(cacheConfiguration.trustWindow)
+            if (allowTrusted && now - cached.validatedAtMillis < trustWindowMillis)
+            {
+                return cached.item
+            }
 
-        val request = requestBuilder.build()
+            val current = readItem(pkValue, VERSION_PROJECTION)
+            if (current == null)
+            {
+                invalidateCachedAccount(cached.item)
+                return null
+            }
+            if (AccountsTable.version.optionalFrom(current) == cached.version &&
+                AccountsTable.accountId.optionalFrom(current) == cached.accountId)
+            {
+                cache(cached.item, cached.loadedAtMillis, now, writeGeneration)
+                return cached.item
+            }
+        }
 
-        val response = _client.getItem(request)
-        return if (response.hasItem()) response.item() else null
+        val item = readItem(pkValue) ?: return null
+        val now = System.currentTimeMillis()
+        cache(item, now, now, writeGeneration)
+        return item
     }
 
-    private fun getItemByUsername(userName: String): DynamoDBItem?
+    private fun readItem(pkValue: String, projection: ExpressionBuilder? = null): DynamoDBItem?
     {
         val requestBuilder = GetItemRequest.builder()
             .tableName(AccountsTable.name)
-            .key(AccountsTable.keyFromUserName(userName))
+            .key(mapOf(AccountsTable.pk.toNameValuePair(pkValue)))
             .consistentRead(true)
 
-        val request = requestBuilder.build()
+        if (projection != null)
+        {
+            requestBuilder.projectionExpression(projection.expression)
+            requestBuilder.expressionAttributeNames(projection.attributeNames)
+        }
 
-        val response = _client.getItem(request)
+        val response = _client.getItem(requestBuilder.build())
         return if (response.hasItem()) response.item() else null
     }
 
+    // The item is cached under each of its unique values, with the matching primary key
+    private fun cache(item: DynamoDBItem, loadedAtMillis: Long, validatedAtMillis: Long, writeGeneration: Long?)
+    {
+        val cacheConfiguration = _cacheConfiguration ?: return
+        val cache = _cache ?: return
+        val version = AccountsTable.version.optionalFrom(item) ?: return
+        val accountId = AccountsTable.accountId.optionalFrom(item) ?: return
+        val expiresAtMillis = loadedAtMillis + TimeUnit.SECONDS.toMillis(cacheConfiguration.maxAge)
+        item.uniquePkValues().forEach { pkValue ->
+            val itemWithPk = item + AccountsTable.pk.toNameValuePair(pkValue)
+            val cachedAccount = CachedAccount(itemWithPk, accountId, version, loadedAtMillis, validatedAtMillis)
+            cache.put(pkValue, cachedAccount, expiresAtMillis, writeGeneration)
+        }
+    }
+
+    private fun invalidateCachedAccount(item: DynamoDBItem)
+    {
+        val cache = _cache ?: return
+        item.uniquePkValues().forEach { cache.invalidate(it) }
+    }
+
     override fun link(
         linkingAccountManager: String,
         localAccountId: String,
@@ -758,51 +844,50 @@ class DynamoDBUserAccountDataAccessProvider(
 
     override fun getAll(resourceQuery: ResourceQuery): ResourceQueryResult = try
     {
-        val comparator = getComparatorFor(resourceQuery)
+        val sortAttribute = getSortAttributeFor(resourceQuery)
 
-        val queryPlan = if (resourceQuery.filter != null)
+        val preparedPlan = if (resourceQuery.filter != null)
         {
-            QueryPlanner(AccountsTable.queryCapabilities).build(resourceQuery.filter)
+            queryPlanner.prepare(resourceQuery.filter)
         } else
         {
-            QueryPlan.UsingScan.fullScan()
+            PreparedQueryPlan.of(QueryPlan.UsingScan.fullScan())
         }
 
-        val values = when (queryPlan)
+        val values = when (val queryPlan = preparedPlan.plan)
         {
-            is QueryPlan.UsingQueries -> query(queryPlan)
-            is QueryPlan.UsingScan -> scan(queryPlan)
+            is QueryPlan.UsingQueries -> query(queryPlan, preparedPlan)
+            is QueryPlan.UsingScan -> scan(queryPlan, preparedPlan)
         }
 
-        // FIXME avoid the toList
-        val sortedValues = if (comparator != null)
+        val validatedStartIndex = resourceQuery.pagination.startIndex.toIntOrThrow("pagination.startIndex")
+        val validatedCount = resourceQuery.pagination.count.toIntOrThrow("pagination.count")
+
+        val page = if (sortAttribute != null)
         {
-            values.sortedWith(
+            values.selectSortedPage(
+                validatedStartIndex,
+                validatedCount,
+                { sortAttribute.optionalFrom(it) },
                 if (resourceQuery.sorting.sortOrder == ResourceQuery.Sorting.SortOrder.ASCENDING)
                 {
-                    comparator
+                    sortKeyComparator
                 } else
                 {
-                    comparator.reversed()
+                    sortKeyComparator.reversed()
                 }
-            ).toList()
+            )
         } else
         {
-            values.toList()
+            values.selectPage(validatedStartIndex, validatedCount)
         }
 
-        val validatedStartIndex = resourceQuery.pagination.startIndex.toIntOrThrow("pagination.startIndex")
-        val validatedCount = resourceQuery.pagination.count.toIntOrThrow("pagination.count")
-
-        val finalValues = sortedValues
-            .drop(validatedStartIndex)
-            .take(validatedCount)
+        val finalValues = page.items
             .map { it.toAccountAttributes(resourceQuery.attributesEnumeration) }
-            .toList()
 
         ResourceQueryResult(
             finalValues,
-            sortedValues.size.toLong(),
+            page.totalCount,
             resourceQuery.pagination.startIndex,
             resourceQuery.pagination.count
         )
@@ -816,14 +901,14 @@ class DynamoDBUserAccountDataAccessProvider(
         throw _configuration.getExceptionFactory().externalServiceException(e.message)
     }
 
-    private fun scan(queryPlan: QueryPlan.UsingScan?): Sequence<DynamoDBItem>
+    private fun scan(queryPlan: QueryPlan.UsingScan, preparedPlan: PreparedQueryPlan): Sequence<DynamoDBItem>
     {
         val scanRequestBuilder = ScanRequest.builder()
             .tableName(AccountsTable.name)
 
-        return if (queryPlan != null && queryPlan.expression.products.isNotEmpty())
+        return if (queryPlan.expression.products.isNotEmpty())
         {
-            val dynamoDBScan = DynamoDBQueryBuilder.buildScan(queryPlan.expression).addPkFiltering()
+            val dynamoDBScan = preparedPlan.toDynamoDBScan().addPkFiltering()
             scanRequestBuilder.configureWith(dynamoDBScan)
             scanSequence(scanRequestBuilder.build(), _client)
                 .filterWith(queryPlan.expression.products)
@@ -840,37 +925,46 @@ class DynamoDBUserAccountDataAccessProvider(
         nameMap = filterForItemsWithAccountIdPk.nameMap + this.nameMap
     )
 
-    private fun query(queryPlan: QueryPlan.UsingQueries): Sequence<DynamoDBItem>
+    private fun query(queryPlan: QueryPlan.UsingQueries, preparedPlan: PreparedQueryPlan): Sequence<DynamoDBItem>
     {
         val nOfQueries = queryPlan.queries.entries.size
         if (nOfQueries > MAX_QUERIES)
         {
             throw UnsupportedQueryException.QueryRequiresTooManyOperations(nOfQueries, MAX_QUERIES)
         }
-        val result = linkedMapOf<String, Map<String, AttributeValue>>()
-        queryPlan.queries.forEach { query ->
-            val dynamoDBQuery = DynamoDBQueryBuilder.buildQuery(query.key, query.value)
+        // The queries are independent, so they can run in parallel, but their results are merged in the plan's order
+        val results = _client.inParallelQueries(
+            queryPlan.queries.map { query ->
+                {
+                    val dynamoDBQuery = preparedPlan.toDynamoDBQuery(query.key)
 
-            val queryRequest = QueryRequest.builder()
-                .tableName(AccountsTable.name)
-                .configureWith(dynamoDBQuery)
-                .build()
+                    val queryRequest = QueryRequest.builder()
+                        .tableName(AccountsTable.name)
+                        .configureWith(dynamoDBQuery)
+                        .build()
 
-            querySequence(queryRequest, _client)
-                .filterWith(query.value)
-                .forEach {
-                    result[AccountsTable.accountId.from(it)] = it
+                    querySequence(queryRequest, _client)
+                        .filterWith(query.value)
+                        .toList()
                 }
+            }
+        )
+        val result = linkedMapOf<String, Map<String, AttributeValue>>()
+        results.forEach { items ->
+            items.forEach {
+                result[AccountsTable.accountId.from(it)] = it
+            }
         }
         return result.values.asSequence()
     }
 
-    private fun getComparatorFor(resourceQuery: ResourceQuery): Comparator<Map<String, AttributeValue>>?
+    // Returns the attribute to sort by, which has a comparator, or null if the query isn't sorted
+    private fun getSortAttributeFor(resourceQuery: ResourceQuery): DynamoDBAttribute<*>?
     {
         return if (resourceQuery.sorting != null && resourceQuery.sorting.sortBy != null)
         {
             AccountsTable.queryCapabilities.attributeMap[resourceQuery.sorting.sortBy]
-                ?.let { attribute ->
+                ?.also { attribute ->
                     attribute.comparator()
                         ?: throw UnsupportedQueryException.UnsupportedSortAttribute(resourceQuery.sorting.sortBy)
                 }
@@ -886,15 +980,14 @@ class DynamoDBUserAccountDataAccessProvider(
         val validatedStartIndex = startIndex.toIntOrThrow("pagination.startIndex")
         val validatedCount = count.toIntOrThrow("pagination.count")
 
-        val allItems = scan(null).toList()
+        val request = ScanRequest.builder()
+            .tableName(AccountsTable.name)
+            .configureWith(filterForItemsWithAccountIdPk)
+            .build()
 
-        val paginatedItems = allItems
-            .drop(validatedStartIndex)
-            .take(validatedCount)
-            .map { it.toAccountAttributes() }
-            .toList()
+        val page = scanPageWithTotal(request, _client, validatedStartIndex, validatedCount)
 
-        return ResourceQueryResult(paginatedItems, allItems.count().toLong(), startIndex, count)
+        return ResourceQueryResult(page.items.map { it.toAccountAttributes() }, page.totalCount, startIndex, count)
     }
 
     private fun AccountAttributes.toItem(
@@ -1131,6 +1224,21 @@ class DynamoDBUserAccountDataAccessProvider(
 
         private const val N_OF_ATTEMPTS = 3
 
+        private const val CACHE_NAME = "accounts"
+
+        private val VERSION_PROJECTION = ExpressionBuilder(
+            "${AccountsTable.version.hashName}, ${AccountsTable.accountId.hashName}",
+            AccountsTable.version,
+            AccountsTable.accountId
+        )
+
+        private fun DynamoDBItem.uniquePkValues(): List<String> = listOfNotNull(
+            AccountsTable.accountId.optionalFrom(this)?.let { AccountsTable.accountId.uniquenessValueFrom(it) },
+            AccountsTable.userName.optionalFrom(this)?.let { AccountsTable.userName.uniquenessValueFrom(it) },
+            AccountsTable.email.optionalFrom(this)?.let { AccountsTable.email.uniquenessValueFrom(it) },
+            AccountsTable.phone.optionalFrom(this)?.let { AccountsTable.phone.uniquenessValueFrom(it) }
+        )
+
         private fun removeLinkedAccounts(account: AccountAttributes): AccountAttributes
         {
             var withoutLinks = account
@@ -1166,5 +1274,8 @@ class DynamoDBUserAccountDataAccessProvider(
         )
 
         private const val MAX_QUERIES = 8
+
+        // Shared, so that query plans are cached across requests
+        private val queryPlanner = QueryPlanner(AccountsTable.queryCapabilities)
     }
 }
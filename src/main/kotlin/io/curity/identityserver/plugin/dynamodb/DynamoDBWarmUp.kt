@@ -0,0 +1,208 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import io.curity.identityserver.plugin.dynamodb.DynamoDBBucketDataAccessProvider.BucketsTable
+import io.curity.identityserver.plugin.dynamodb.DynamoDBDeviceDataAccessProvider.DeviceTable
+import io.curity.identityserver.plugin.dynamodb.DynamoDBDynamicallyRegisteredClientDataAccessProvider.DcrTable
+import io.curity.identityserver.plugin.dynamodb.DynamoDBSessionDataAccessProvider.SessionTable
+import io.curity.identityserver.plugin.dynamodb.DynamoDBUserAccountDataAccessProvider.AccountsTable
+import io.curity.identityserver.plugin.dynamodb.DynamoDBUserAccountDataAccessProvider.LinksTable
+import io.curity.identityserver.plugin.dynamodb.configuration.DynamoDBDataAccessProviderConfiguration
+import io.curity.identityserver.plugin.dynamodb.token.DynamoDBDelegationDataAccessProvider.DelegationTable
+import io.curity.identityserver.plugin.dynamodb.token.DynamoDBNonceDataAccessProvider.NonceTable
+import io.curity.identityserver.plugin.dynamodb.token.DynamoDBTokenDataAccessProvider.TokenTable
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest
+import software.amazon.awssdk.services.dynamodb.model.DescribeTableRequest
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Warms up the client before it is used by the data access providers, so that the first requests after a
+ * deployment don't pay for DNS resolution, TLS handshakes, class loading and cold code paths.
+ *
+ * For each table, the table is described and each request type is sent using a sentinel key that is never used
+ * by real items. Writes are conditional on the sentinel item existing, so they never modify any data.
+ * Connections are opened by sending concurrent reads.
+ *
+ * Failures are logged and never prevent the data source from starting.
+ */
+class DynamoDBWarmUp(
+    private val _client: DynamoDBClient,
+    private val _config: DynamoDBDataAccessProviderConfiguration.WarmUp
+)
+{
+    private class WarmUpTable(val table: Table, vararg val keyAttributeNames: String)
+    {
+        val sentinelKey = keyAttributeNames.associate { it to AttributeValue.builder().s(SENTINEL_VALUE).build() }
+    }
+
+    private class TableReport(val tableName: String, val ready: Boolean, val latencyMillis: Map<String, Long>)
+
+    fun run(): Boolean
+    {
+        val startNanos = System.nanoTime()
+        val reports = TABLES.map { warmUp(it) }
+        openConnections()
+
+        val ready = reports.all { it.ready }
+        reports.forEach { report ->
+            _logger.info(
+                "DynamoDB warm-up of table '{}' {}, latency in ms: {}",
+                report.tableName, if (report.ready) "completed" else "failed", report.latencyMillis
+            )
+        }
+        _logger.info(
+            "DynamoDB warm-up {} in {} ms", if (ready) "completed" else "completed with failures",
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)
+        )
+        return ready
+    }
+
+    private fun warmUp(table: WarmUpTable): TableReport
+    {
+        val latencies = linkedMapOf<String, Long>()
+        val tableName = table.table.name
+
+        fun timed(operationName: String, block: () -> Unit): Boolean
+        {
+            val startNanos = System.nanoTime()
+            return try
+            {
+                block()
+                true
+            } catch (_: ConditionalCheckFailedException)
+            {
+                // Expected, since the sentinel item doesn't exist
+                true
+            } catch (e: Exception)
+            {
+                _logger.debug("DynamoDB warm-up {} on table '{}' failed: {}", operationName, tableName, e.message)
+                false
+            } finally
+            {
+                latencies[operationName] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)
+            }
+        }
+
+        // If the table can't be described, then the remaining requests will fail too
+        if (!timed("DescribeTable") {
+                _client.describeTable(DescribeTableRequest.builder().tableName(tableName).build())
+            })
+        {
+            return TableReport(tableName, false, latencies)
+        }
+
+        val partitionKeyName = table.keyAttributeNames.first()
+        var ready = timed("GetItem") {
+            _client.getItem(GetItemRequest.builder().tableName(tableName).key(table.sentinelKey).build())
+        }
+        ready = timed("Query") {
+            _client.query(
+                QueryRequest.builder()
+                    .tableName(tableName)
+                    .keyConditionExpression("#pk = :pk")
+                    .expressionAttributeNames(mapOf("#pk" to partitionKeyName))
+                    .expressionAttributeValues(mapOf(":pk" to table.sentinelKey.getValue(partitionKeyName)))
+                    .limit(1)
+                    .build()
+            )
+        } && ready
+
+        if (_config.exerciseWrites)
+        {
+            ready = timed("PutItem") {
+                _client.putItem(
+                    PutItemRequest.builder()
+                        .tableName(tableName)
+                        .item(table.sentinelKey)
+                        .conditionExpression("attribute_exists(#pk)")
+                        .expressionAttributeNames(mapOf("#pk" to partitionKeyName))
+                        .build()
+                )
+            } && ready
+            ready = timed("DeleteItem") {
+                _client.deleteItem(
+                    DeleteItemRequest.builder()
+                        .tableName(tableName)
+                        .key(table.sentinelKey)
+                        .conditionExpression("attribute_exists(#pk)")
+                        .expressionAttributeNames(mapOf("#pk" to partitionKeyName))
+                        .build()
+                )
+            } && ready
+        }
+
+        return TableReport(tableName, ready, latencies)
+    }
+
+    // Concurrent requests force the HTTP client to open that many pooled connections.
+    // Each request uses a different sentinel key, so that coalesced reads don't turn them into a single request.
+    private fun openConnections()
+    {
+        val connections = _config.connections.toInt()
+        val executor = Executors.newFixedThreadPool(connections)
+        try
+        {
+            executor.invokeAll((1..connections).map { index ->
+                val request = GetItemRequest.builder()
+                    .tableName(SessionTable.name)
+                    .key(mapOf(SessionTable.id.name to AttributeValue.builder().s("$SENTINEL_VALUE-$index").build()))
+                    .build()
+                Callable {
+                    try
+                    {
+                        _client.getItem(request)
+                    } catch (e: Exception)
+                    {
+                        _logger.debug("DynamoDB warm-up connection request failed: {}", e.message)
+                    }
+                }
+            })
+        } finally
+        {
+            executor.shutdown()
+        }
+    }
+
+    companion object
+    {
+        private val _logger: Logger = LoggerFactory.getLogger(DynamoDBWarmUp::class.java)
+
+        private const val SENTINEL_VALUE = "curity-warm-up-sentinel"
+
+        private val TABLES = listOf(
+            WarmUpTable(AccountsTable, AccountsTable.pk.name),
+            WarmUpTable(BucketsTable, BucketsTable.subject.name, BucketsTable.purpose.name),
+            WarmUpTable(DelegationTable, DelegationTable.id.name),
+            WarmUpTable(DeviceTable, DeviceTable.pk.name, DeviceTable.sk.name),
+            WarmUpTable(DcrTable, DcrTable.clientId.name),
+            WarmUpTable(LinksTable, LinksTable.pk.name),
+            WarmUpTable(NonceTable, NonceTable.nonce.name),
+            WarmUpTable(SessionTable, SessionTable.id.name),
+            WarmUpTable(TokenTable, TokenTable.tokenHash.name)
+        )
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbRequest
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsRequest
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest
+
+/**
+ * Caches the responses to GetItem and Query requests on the tables that registered a [Region], within a memory
+ * budget shared by all regions.
+ *
+ * Memory use is estimated from the size of the cached items. When a region goes over its own maximum, its least
+ * recently used entries are evicted. When all the regions together go over [maxWeight], entries are evicted from
+ * the region using the largest fraction of its own maximum.
+ *
+ * Writes made through the [DynamoDBClient] invalidate the cached items with the written keys, and all the cached
+ * queries on the written table. Writes made on other nodes are only observed after the region's time-to-live.
+ */
+class ItemCacheManager(private val maxWeight: Long)
+{
+    /**
+     * Cache settings for a table.
+     *
+     * @param keyAttributeNames the names of the table's primary key attributes, used to find the key of put items.
+     * @param servesConsistentReads if false, strongly consistent reads are always sent to DynamoDB.
+     */
+    class Region(
+        val tableName: String,
+        val keyAttributeNames: List<String>,
+        val ttlMillis: Long,
+        val maxWeight: Long,
+        val servesConsistentReads: Boolean
+    )
+
+    private data class GetItemKey(
+        val key: Map<String, AttributeValue>,
+        val projectionExpression: String?,
+        val attributeNames: Map<String, String>
+    )
+
+    // itemKey is null for cached queries, which are invalidated by any write on the table
+    private class Entry(
+        val response: Any,
+        val itemKey: Map<String, AttributeValue>?,
+        val weight: Long,
+        val expiresAtMillis: Long
+    )
+
+    private class RegionState(val region: Region)
+    {
+        val entries = LinkedHashMap<Any, Entry>(16, 0.75f, true)
+        var weight = 0L
+
+        // Incremented on each write, so that responses read while a write was in progress are not cached
+        var writeGeneration = 0L
+
+        val usage: Double
+            get() = weight.toDouble() / region.maxWeight
+    }
+
+    private val _lock = Any()
+    private val _regions = HashMap<String, RegionState>()
+    private var _weight = 0L
+
+    fun register(region: Region)
+    {
+        synchronized(_lock) {
+            _regions.putIfAbsent(region.tableName, RegionState(region))
+        }
+    }
+
+    fun getItem(request: GetItemRequest, send: () -> GetItemResponse): GetItemResponse
+    {
+        val key = GetItemKey(request.key(), request.projectionExpression(), request.expressionAttributeNames())
+        return execute(request.tableName(), key, request.key(), request.consistentRead(), send) { response ->
+            if (response.hasItem()) estimatedSize(response.item()) else 0L
+        }
+    }
+
+    fun query(request: QueryRequest, send: () -> QueryResponse): QueryResponse
+    {
+        // Requests are compared ignoring their consistency, since a consistent response can be used by both
+        val key = request.toBuilder().consistentRead(null).build()
+        return execute(request.tableName(), key, null, request.consistentRead(), send) { response ->
+            response.items().map { estimatedSize(it) }.sum() +
+                    (response.lastEvaluatedKey()?.let { estimatedSize(it) } ?: 0L)
+        }
+    }
+
+    private fun <T : Any> execute(
+        tableName: String,
+        key: Any,
+        itemKey: Map<String, AttributeValue>?,
+        consistentRead: Boolean?,
+        send: () -> T,
+        weigh: (T) -> Long
+    ): T
+    {
+        // Null if the response can't be cached
+        var writeGeneration: Long? = null
+        val cached = synchronized(_lock) {
+            val state = _regions[tableName]
+            if (state == null || (consistentRead == true && !state.region.servesConsistentReads))
+            {
+                return@synchronized null
+            }
+            writeGeneration = state.writeGeneration
+            val entry = state.entries[key] ?: return@synchronized null
+            if (entry.expiresAtMillis <= System.currentTimeMillis())
+            {
+                remove(state, key)
+                return@synchronized null
+            }
+            entry.response
+        }
+        if (cached != null)
+        {
+            @Suppress("UNCHECKED_CAST")
+            return cached as T
+        }
+        val observedGeneration = writeGeneration ?: return send()
+
+        val response = send()
+        val weight = weigh(response) + ENTRY_OVERHEAD
+        synchronized(_lock) {
+            val state = _regions.getValue(tableName)
+            if (state.writeGeneration == observedGeneration && weight <= state.region.maxWeight)
+            {
+                remove(state, key)
+                state.entries[key] =
+                    Entry(response, itemKey, weight, System.currentTimeMillis() + state.region.ttlMillis)
+                state.weight += weight
+                _weight += weight
+                evict(state)
+            }
+        }
+        return response
+    }
+
+    /**
+     * To be called after each write request completes, successfully or not.
+     */
+    fun onWrite(request: DynamoDbRequest)
+    {
+        when (request)
+        {
+            is PutItemRequest -> invalidate(request.tableName()) { region -> request.item().keyOf(region) }
+            is UpdateItemRequest -> invalidate(request.tableName()) { request.key() }
+            is DeleteItemRequest -> invalidate(request.tableName()) { request.key() }
+            is TransactWriteItemsRequest -> request.transactItems().forEach { item ->
+                item.put()?.let { put -> invalidate(put.tableName()) { region -> put.item().keyOf(region) } }
+                item.update()?.let { update -> invalidate(update.tableName()) { update.key() } }
+                item.delete()?.let { delete -> invalidate(delete.tableName()) { delete.key() } }
+            }
+        }
+    }
+
+    private fun invalidate(tableName: String, itemKey: (Region) -> Map<String, AttributeValue>)
+    {
+        synchronized(_lock) {
+            val state = _regions[tableName] ?: return
+            state.writeGeneration++
+            val key = itemKey(state.region)
+            state.entries.entries
+                .filter { it.value.itemKey == null || it.value.itemKey == key }
+                .map { it.key }
+                .forEach { remove(state, it) }
+        }
+    }
+
+    fun clear()
+    {
+        synchronized(_lock) {
+            _regions.values.forEach {
+                // So that responses being read are not cached either
+                it.writeGeneration++
+                it.entries.clear()
+                it.weight = 0
+            }
+            _weight = 0
+        }
+    }
+
+    // Must be called while holding the lock
+    private fun remove(state: RegionState, key: Any)
+    {
+        val entry = state.entries.remove(key) ?: return
+        state.weight -= entry.weight
+        _weight -= entry.weight
+    }
+
+    // Must be called while holding the lock
+    private fun evict(changed: RegionState)
+    {
+        while (changed.weight > changed.region.maxWeight)
+        {
+            remove(changed, changed.entries.keys.first())
+        }
+        while (_weight > maxWeight)
+        {
+            val state = _regions.values.filter { it.entries.isNotEmpty() }.maxBy { it.usage } ?: return
+            remove(state, state.entries.keys.first())
+        }
+    }
+
+    companion object
+    {
+        // Approximate memory used by an entry besides its items
+        private const val ENTRY_OVERHEAD = 256L
+
+        private fun Map<String, AttributeValue>.keyOf(region: Region) = filterKeys { it in region.keyAttributeNames }
+
+        /**
+         * Estimates the memory used by an item, from the size of its attribute names and values.
+         */
+        fun estimatedSize(item: Map<String, AttributeValue>): Long =
+            item.entries.map { (name, value) -> 2L * name.length + estimatedSize(value) }.sum()
+
+        private fun estimatedSize(value: AttributeValue): Long = VALUE_OVERHEAD +
+                2L * (value.s()?.length ?: 0) +
+                2L * (value.n()?.length ?: 0) +
+                (value.b()?.asByteBuffer()?.remaining() ?: 0) +
+                value.ss().map { 2L * it.length }.sum() +
+                value.ns().map { 2L * it.length }.sum() +
+                value.bs().map { it.asByteBuffer().remaining().toLong() }.sum() +
+                estimatedSize(value.m()) +
+                value.l().map { estimatedSize(it) }.sum()
+
+        private const val VALUE_OVERHEAD = 32L
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * JMX view of a [LocalCache].
+ */
+interface LocalCacheMBean
+{
+    val name: String
+    val size: Int
+    val maxSize: Long
+    val hitCount: Long
+    val missCount: Long
+}
+
+/**
+ * Bounded in-process cache, evicting the least recently used entries, where each entry has its own expiration.
+ *
+ * Caches live in the [DynamoDBClient], since data access providers don't outlive a request.
+ * They only hold data for the local node, so each use must bound how stale its entries can get.
+ *
+ * A value read from DynamoDB while the same item is being written can be the previous one, even if it is put after
+ * the writer invalidated the entry. To prevent that, readers obtain the [writeGeneration] before reading, and give it
+ * to [put], which doesn't cache the value if an invalidation happened in between. Writers invalidate the entry both
+ * before and after writing.
+ */
+class LocalCache<K : Any, V : Any>(
+    override val name: String,
+    override val maxSize: Long
+) : LocalCacheMBean
+{
+    private class Entry<V>(val value: V, val expiresAtMillis: Long)
+
+    private val _entries = object : LinkedHashMap<K, Entry<V>>(16, 0.75f, true)
+    {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<K, Entry<V>>) = size > maxSize
+    }
+
+    // Incremented on each invalidation
+    private var _writeGeneration = 0L
+
+    private val _hits = LongAdder()
+    private val _misses = LongAdder()
+
+    /**
+     * Returns the cached value, or null if there is none or it expired.
+     */
+    fun get(key: K): V?
+    {
+        val now = System.currentTimeMillis()
+        val value = synchronized(_entries) {
+            val entry = _entries[key]
+            if (entry != null && entry.expiresAtMillis <= now)
+            {
+                _entries.remove(key)
+                null
+            } else
+            {
+                entry?.value
+            }
+        }
+        if (value == null)
+        {
+            _misses.increment()
+        } else
+        {
+            _hits.increment()
+        }
+        return value
+    }
+
+    val writeGeneration: Long
+        get() = synchronized(_entries) { _writeGeneration }
+
+    /**
+     * Caches the value, unless an entry was invalidated since [writeGeneration] was obtained, if given.
+     */
+    fun put(key: K, value: V, expiresAtMillis: Long, writeGeneration: Long? = null)
+    {
+        synchronized(_entries) {
+            if (writeGeneration != null && writeGeneration != _writeGeneration)
+            {
+                return
+            }
+            if (expiresAtMillis <= System.currentTimeMillis())
+            {
+                _entries.remove(key)
+                return
+            }
+            _entries[key] = Entry(value, expiresAtMillis)
+        }
+    }
+
+    /**
+     * Replaces the cached value only if it is still [expected], which is compared by identity.
+     * Returns false if the entry was invalidated, expired or replaced since [expected] was obtained.
+     */
+    fun replace(key: K, expected: V, value: V, expiresAtMillis: Long): Boolean
+    {
+        val now = System.currentTimeMillis()
+        synchronized(_entries) {
+            val entry = _entries[key]
+            if (entry == null || entry.value !== expected || entry.expiresAtMillis <= now)
+            {
+                return false
+            }
+            if (expiresAtMillis <= now)
+            {
+                _entries.remove(key)
+            } else
+            {
+                _entries[key] = Entry(value, expiresAtMillis)
+            }
+            return true
+        }
+    }
+
+    fun invalidate(key: K)
+    {
+        synchronized(_entries) {
+            _writeGeneration++
+            _entries.remove(key)
+        }
+    }
+
+    fun clear()
+    {
+        synchronized(_entries) {
+            _writeGeneration++
+            _entries.clear()
+        }
+    }
+
+    override val size: Int
+        get() = synchronized(_entries) { _entries.size }
+
+    override val hitCount: Long
+        get() = _hits.sum()
+
+    override val missCount: Long
+        get() = _misses.sum()
+}
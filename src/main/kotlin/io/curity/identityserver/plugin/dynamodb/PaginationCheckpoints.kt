@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbRequest
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest
+import java.util.TreeMap
+
+/**
+ * A position in the items produced by a query or scan: the items after [exclusiveStartKey], or from the beginning
+ * if null, skipping the first [skip] of them.
+ */
+class PaginationCursor(val exclusiveStartKey: Map<String, AttributeValue>?, val skip: Int)
+
+/**
+ * Remembers, for each query or scan, the key from which each already read offset can be resumed, so that a page
+ * starting at a deep offset doesn't need to read all the previous items again.
+ *
+ * Checkpoints are only kept for [ttlMillis] after the first one of a query is recorded, which bounds how long
+ * offsets computed before items were created or deleted are used.
+ */
+class PaginationCheckpoints(
+    private val _cache: LocalCache<DynamoDbRequest, Checkpoints>,
+    private val ttlMillis: Long
+)
+{
+    class Checkpoints
+    {
+        private val _keys = TreeMap<Int, Map<String, AttributeValue>>()
+
+        // The total number of items, once all of them were read
+        @Volatile
+        var totalCount: Long? = null
+
+        /**
+         * Returns the cursor to the item at [offset], starting from the closest checkpoint before it.
+         */
+        fun cursorTo(offset: Int): Pair<Int, PaginationCursor>
+        {
+            val checkpoint = synchronized(_keys) { _keys.floorEntry(offset) }
+                ?: return Pair(0, PaginationCursor(null, offset))
+            return Pair(checkpoint.key, PaginationCursor(checkpoint.value, offset - checkpoint.key))
+        }
+
+        fun record(offset: Int, lastEvaluatedKey: Map<String, AttributeValue>)
+        {
+            synchronized(_keys) {
+                if (_keys.size < MAX_CHECKPOINTS_PER_REQUEST)
+                {
+                    _keys[offset] = lastEvaluatedKey
+                }
+            }
+        }
+    }
+
+    // The request's limit and start key don't change the items it produces
+    fun of(request: QueryRequest): Checkpoints =
+        of(request.toBuilder().exclusiveStartKey(null).limit(null).build())
+
+    fun of(request: ScanRequest): Checkpoints =
+        of(request.toBuilder().exclusiveStartKey(null).limit(null).build())
+
+    private fun of(fingerprint: DynamoDbRequest): Checkpoints
+    {
+        _cache.get(fingerprint)?.let { return it }
+        val checkpoints = Checkpoints()
+        _cache.put(fingerprint, checkpoints, System.currentTimeMillis() + ttlMillis)
+        return checkpoints
+    }
+
+    companion object
+    {
+        const val CACHE_NAME = "pagination-checkpoints"
+
+        private const val MAX_CHECKPOINTS_PER_REQUEST = 1000
+    }
+}
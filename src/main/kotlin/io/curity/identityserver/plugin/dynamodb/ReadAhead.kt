@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue
+import java.util.ArrayDeque
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Reads the pages of a query or scan after the [first] one, requesting each page as soon as the previous one
+ * arrives, while at most [depth] pages are requested and not yet read.
+ *
+ * If the reader stops early, no more pages are requested once that bound is reached.
+ * Pages are requested from the [executor]'s threads, never from the thread completing the previous response, since
+ * sending a request can wait for the client's limiters.
+ */
+class ReadAhead(
+    private val depth: Int,
+    private val executor: Executor,
+    first: Fetched,
+    private val fetch: (Map<String, AttributeValue>) -> CompletableFuture<Fetched>
+)
+{
+    class Fetched(val items: List<DynamoDBItem>, val lastEvaluatedKey: Map<String, AttributeValue>?)
+
+    private class Page(val response: CompletableFuture<Fetched>)
+    {
+        // Set when the request for the following page is sent
+        val followed = AtomicBoolean()
+    }
+
+    private val _pages = ArrayDeque<Page>(listOf(Page(CompletableFuture.completedFuture(first))))
+
+    /**
+     * Waits for the next page, or returns null if there are no more.
+     * Throws the same exceptions as the blocking operations.
+     */
+    fun next(): Fetched?
+    {
+        val page = synchronized(_pages) { _pages.pollFirst() } ?: return null
+        val fetched = try
+        {
+            page.response.get()
+        } catch (e: ExecutionException)
+        {
+            throw e.cause ?: e
+        }
+        // There is room for one more page, after the last requested one
+        follow(synchronized(_pages) { _pages.peekLast() } ?: page)
+        return fetched
+    }
+
+    private fun request(exclusiveStartKey: Map<String, AttributeValue>)
+    {
+        val response = try
+        {
+            fetch(exclusiveStartKey)
+        } catch (e: Exception)
+        {
+            CompletableFuture<Fetched>().apply { completeExceptionally(e) }
+        }
+        val page = Page(response)
+        synchronized(_pages) { _pages.addLast(page) }
+        page.response.thenRunAsync(Runnable { follow(page) }, executor)
+    }
+
+    // Requests the page after the given one, if it arrived and has a last evaluated key, and there is room
+    private fun follow(page: Page)
+    {
+        val fetched = try
+        {
+            page.response.getNow(null)
+        } catch (_: CompletionException)
+        {
+            // Failures are thrown to the reader
+            null
+        }
+        val lastEvaluatedKey = fetched?.lastEvaluatedKey ?: return
+        if (synchronized(_pages) { _pages.size >= depth })
+        {
+            return
+        }
+        if (page.followed.compareAndSet(false, true))
+        {
+            request(lastEvaluatedKey)
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Coalesces concurrent identical GetItem requests, so that only one of them is sent while the others wait for its
+ * response, which is shared by all of them.
+ *
+ * A request only waits for one in flight if no write to the same table, made via this client, completed since
+ * that one was sent, so that a read made after a write still observes it.
+ */
+class RequestCoalescing(private val onCollapsed: (tableName: String) -> Unit)
+{
+    private data class FlightKey(
+        val tableName: String,
+        val key: Map<String, AttributeValue>,
+        val projectionExpression: String?,
+        val attributeNames: Map<String, String>,
+        val consistentRead: Boolean?
+    )
+
+    private class Flight(val writeGeneration: Long)
+    {
+        val response = CompletableFuture<GetItemResponse>()
+    }
+
+    private val _inFlight = ConcurrentHashMap<FlightKey, Flight>()
+    private val _writeGenerations = ConcurrentHashMap<String, AtomicLong>()
+
+    fun execute(request: GetItemRequest, send: () -> GetItemResponse): GetItemResponse
+    {
+        val key = FlightKey(
+            request.tableName(),
+            request.key(),
+            request.projectionExpression(),
+            request.expressionAttributeNames(),
+            request.consistentRead()
+        )
+        val flight = Flight(writeGeneration(request.tableName()).get())
+        val current = _inFlight.putIfAbsent(key, flight)
+        if (current != null)
+        {
+            if (current.writeGeneration != flight.writeGeneration)
+            {
+                // The request in flight may not observe the write
+                return send()
+            }
+            onCollapsed(request.tableName())
+            return current.response.await()
+        }
+
+        try
+        {
+            val response = send()
+            flight.response.complete(response)
+            return response
+        } catch (e: Throwable)
+        {
+            flight.response.completeExceptionally(e)
+            throw e
+        } finally
+        {
+            _inFlight.remove(key, flight)
+        }
+    }
+
+    /**
+     * To be called after each write to [tableName] completes, successfully or not.
+     */
+    fun onWrite(tableName: String)
+    {
+        writeGeneration(tableName).incrementAndGet()
+    }
+
+    private fun writeGeneration(tableName: String) = _writeGenerations.computeIfAbsent(tableName) { AtomicLong() }
+
+    companion object
+    {
+        // Waits for the shared response, throwing the same exception as the request that was sent
+        private fun <T> CompletableFuture<T>.await(): T = try
+        {
+            get()
+        } catch (e: ExecutionException)
+        {
+            throw e.cause ?: e
+        }
+    }
+}
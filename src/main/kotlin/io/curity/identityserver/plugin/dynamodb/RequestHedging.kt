@@ -0,0 +1,134 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import io.curity.identityserver.plugin.dynamodb.metrics.LatencyHistogram
+import org.slf4j.LoggerFactory
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Sends a second (hedged) request when the first one doesn't complete within a delay, using whichever response
+ * arrives first. Only to be used with idempotent requests.
+ *
+ * The delay is either fixed or the observed 95th percentile latency of the first requests.
+ * Each request earns a fraction of a hedge, so that at most [maxHedgedPercentage] percent of the requests are
+ * hedged, with a small allowance for bursts.
+ */
+class RequestHedging(
+    private val fixedDelayMillis: Long?,
+    maxHedgedPercentage: Long
+)
+{
+    private val _latency = LatencyHistogram()
+    private val _creditPerRequest = maxHedgedPercentage / 100.0
+    private var _credit = 0.0
+
+    fun <T> execute(send: () -> CompletableFuture<T>): CompletableFuture<T>
+    {
+        earnCredit()
+        val startNanos = System.nanoTime()
+        val primary = send()
+        primary.whenComplete { _, throwable ->
+            if (throwable == null)
+            {
+                _latency.record(System.nanoTime() - startNanos)
+            }
+        }
+
+        val delayMillis = delayMillis() ?: return primary
+        try
+        {
+            primary.get(delayMillis, TimeUnit.MILLISECONDS)
+            return primary
+        } catch (_: TimeoutException)
+        {
+            // Hedge, if still within budget
+        } catch (_: ExecutionException)
+        {
+            // Failures are handled by the retry policy, not by hedging
+            return primary
+        }
+
+        if (!spendCredit())
+        {
+            return primary
+        }
+        _logger.trace("Request did not complete after {} ms, sending hedged request", delayMillis)
+        return firstSuccessful(primary, send())
+    }
+
+    private fun delayMillis(): Long? = fixedDelayMillis ?: if (_latency.count >= MIN_OBSERVATIONS)
+    {
+        Math.ceil(_latency.percentileMillis(95.0)).toLong()
+    } else
+    {
+        null
+    }
+
+    @Synchronized
+    private fun earnCredit()
+    {
+        _credit = minOf(MAX_CREDIT, _credit + _creditPerRequest)
+    }
+
+    @Synchronized
+    private fun spendCredit(): Boolean = if (_credit >= 1.0)
+    {
+        _credit -= 1.0
+        true
+    } else
+    {
+        false
+    }
+
+    companion object
+    {
+        private val _logger = LoggerFactory.getLogger(RequestHedging::class.java)
+
+        // Number of observations needed before using the observed latency as the delay
+        private const val MIN_OBSERVATIONS = 100L
+
+        // Maximum number of hedged requests that can be sent in a burst
+        private const val MAX_CREDIT = 10.0
+
+        /**
+         * Returns a future completed with the first successful result of [first] and [second],
+         * or with the last failure if both fail.
+         */
+        fun <T> firstSuccessful(first: CompletableFuture<T>, second: CompletableFuture<T>): CompletableFuture<T>
+        {
+            val result = CompletableFuture<T>()
+            val remainingFailures = AtomicInteger(2)
+            listOf(first, second).forEach { future ->
+                future.whenComplete { value, throwable ->
+                    if (throwable == null)
+                    {
+                        result.complete(value)
+                    } else if (remainingFailures.decrementAndGet() == 0)
+                    {
+                        result.completeExceptionally(throwable)
+                    }
+                }
+            }
+            return result
+        }
+    }
+}
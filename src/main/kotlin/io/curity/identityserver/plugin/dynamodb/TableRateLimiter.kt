@@ -0,0 +1,111 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+class RateLimitExceededException(tableName: String, lane: TableRateLimiter.Lane) :
+    RuntimeException("Capacity limit for table '$tableName' exceeded by $lane request")
+
+/**
+ * Client-side limiter of the read and write capacity units used on a table, with one token bucket for reads
+ * and another one for writes, each one holding up to one second of capacity.
+ *
+ * Requests are classified into lanes. Lower priority lanes can only take capacity while the bucket stays above
+ * a floor, which is kept for the higher priority lanes, so that queries and scans are delayed, and eventually
+ * rejected, before they can starve point reads and writes.
+ *
+ * The capacity consumed by a request is only known after it completes, so one unit is taken before sending it,
+ * and the remaining consumed capacity is taken afterwards via [onConsumed]. That unit is given back via [release]
+ * if the request isn't sent.
+ */
+class TableRateLimiter(
+    private val tableName: String,
+    readUnitsPerSecond: Long?,
+    writeUnitsPerSecond: Long?,
+    private val maxWaitNanos: Long
+)
+{
+    enum class Lane(val floorFraction: Double)
+    {
+        INTERACTIVE(0.0), QUERY(0.25), SCAN(0.5);
+
+        companion object
+        {
+            fun of(operationName: String) = when (operationName)
+            {
+                "Query" -> QUERY
+                "Scan" -> SCAN
+                else -> INTERACTIVE
+            }
+        }
+    }
+
+    private val _readBucket = readUnitsPerSecond?.let { LimitedBucket(it.toDouble()) }
+    private val _writeBucket = writeUnitsPerSecond?.let { LimitedBucket(it.toDouble()) }
+
+    /**
+     * Waits until the request can be sent, or throws [RateLimitExceededException] if that would take longer than
+     * the maximum wait time.
+     */
+    fun acquire(operationName: String)
+    {
+        val bucket = bucketFor(operationName) ?: return
+        val lane = Lane.of(operationName)
+        val waitNanos = bucket.tokens.reserve(RESERVED_UNITS, bucket.capacity * lane.floorFraction, maxWaitNanos)
+        if (waitNanos == TokenBucket.REJECTED)
+        {
+            throw RateLimitExceededException(tableName, lane)
+        }
+        TokenBucket.sleepNanos(waitNanos)
+    }
+
+    /**
+     * Gives back the capacity taken by [acquire] for a request that wasn't sent, or that failed without reaching
+     * DynamoDB.
+     */
+    fun release(operationName: String)
+    {
+        bucketFor(operationName)?.tokens?.release(RESERVED_UNITS)
+    }
+
+    fun onConsumed(operationName: String, capacityUnits: Double, reserved: Boolean)
+    {
+        val bucket = bucketFor(operationName) ?: return
+        val remaining = if (reserved) capacityUnits - RESERVED_UNITS else capacityUnits
+        if (remaining > 0)
+        {
+            bucket.tokens.consume(remaining)
+        }
+    }
+
+    private fun bucketFor(operationName: String) = when
+    {
+        isReadOperation(operationName) -> _readBucket
+        // Control plane operations don't consume capacity units
+        operationName == "DescribeTable" -> null
+        else -> _writeBucket
+    }
+
+    private class LimitedBucket(val capacity: Double)
+    {
+        val tokens = TokenBucket(capacity, capacity)
+    }
+
+    companion object
+    {
+        private const val RESERVED_UNITS = 1.0
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * A token bucket that is refilled at [rate] tokens per second, up to [capacity] tokens.
+ *
+ * Tokens are reserved ahead of time: a caller reserving more tokens than the ones available gets the time it needs
+ * to wait, and the bucket balance becomes negative, so that later callers wait behind it.
+ */
+class TokenBucket(
+    rate: Double,
+    capacity: Double
+)
+{
+    private var _rate = rate
+    private var _capacity = capacity
+    private var _tokens = capacity
+    private var _lastRefillNanos = System.nanoTime()
+
+    val rate: Double
+        @Synchronized get() = _rate
+
+    @Synchronized
+    fun updateRate(rate: Double, capacity: Double)
+    {
+        refill()
+        _rate = rate
+        _capacity = capacity
+        _tokens = minOf(_tokens, capacity)
+    }
+
+    /**
+     * Reserves [amount] tokens, only if doing so doesn't leave the bucket below [floor] for more than [maxWaitNanos].
+     * Returns the number of nanoseconds the caller needs to wait before proceeding, or [REJECTED] if the
+     * reservation wasn't made.
+     */
+    @Synchronized
+    fun reserve(amount: Double, floor: Double, maxWaitNanos: Long): Long
+    {
+        refill()
+        val missing = amount + floor - _tokens
+        val waitNanos = if (missing <= 0)
+        {
+            0L
+        } else
+        {
+            (missing / _rate * NANOS_PER_SECOND).toLong()
+        }
+        if (waitNanos > maxWaitNanos)
+        {
+            return REJECTED
+        }
+        _tokens -= amount
+        return waitNanos
+    }
+
+    /**
+     * Removes [amount] tokens without waiting, e.g. to account for a cost that is only known after the fact.
+     */
+    @Synchronized
+    fun consume(amount: Double)
+    {
+        refill()
+        _tokens -= amount
+    }
+
+    /**
+     * Gives back [amount] tokens that were reserved for something that didn't happen, up to the capacity.
+     */
+    @Synchronized
+    fun release(amount: Double)
+    {
+        refill()
+        _tokens = minOf(_capacity, _tokens + amount)
+    }
+
+    private fun refill()
+    {
+        val now = System.nanoTime()
+        val elapsedNanos = now - _lastRefillNanos
+        _lastRefillNanos = now
+        _tokens = minOf(_capacity, _tokens + elapsedNanos * _rate / NANOS_PER_SECOND)
+    }
+
+    companion object
+    {
+        const val REJECTED = -1L
+
+        private val NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1).toDouble()
+
+        fun sleepNanos(nanos: Long)
+        {
+            if (nanos > 0)
+            {
+                TimeUnit.NANOSECONDS.sleep(nanos)
+            }
+        }
+    }
+}
@@ -18,6 +18,7 @@ package io.curity.identityserver.plugin.dynamodb.configuration
 import se.curity.identityserver.sdk.config.Configuration
 import se.curity.identityserver.sdk.config.OneOf
 import se.curity.identityserver.sdk.config.annotation.DefaultBoolean
+import se.curity.identityserver.sdk.config.annotation.DefaultEnum
 import se.curity.identityserver.sdk.config.annotation.DefaultLong
 import se.curity.identityserver.sdk.config.annotation.Description
 import se.curity.identityserver.sdk.config.annotation.RangeConstraint
@@ -106,6 +107,382 @@ interface DynamoDBDataAccessProviderConfiguration : Configuration
     @Description("Amount of time in seconds to wait for each individual request to complete. If not set, DynamoDB's default is used.")
     fun getApiCallAttemptTimeout(): Optional<@RangeConstraint(min=0.0) Long>
 
+    // HTTP client
+
+    @Description("The HTTP client implementation used by blocking requests. The URL connection client has a lower overhead but does not pool connections as efficiently.")
+    @DefaultEnum("apache")
+    fun getHttpClientType(): HttpClientType
+
+    @Description("Maximum number of open HTTP connections to DynamoDB. Should be sized to the number of concurrent requests.")
+    @DefaultLong(50)
+    @RangeConstraint(min = 1.0, max = Int.MAX_VALUE.toDouble())
+    fun getHttpMaxConnections(): Long
+
+    @Description("Amount of time in milliseconds to wait for a connection to be available from the pool. If not set, the HTTP client's default is used.")
+    fun getHttpConnectionAcquisitionTimeout(): Optional<@RangeConstraint(min=0.0) Long>
+
+    @Description("Maximum amount of time in seconds that a pooled connection is kept, regardless of being used. If not set, connections are kept indefinitely.")
+    fun getHttpConnectionTimeToLive(): Optional<@RangeConstraint(min=0.0) Long>
+
+    @Description("Maximum amount of time in seconds that a pooled connection can be idle before being closed. If not set, the HTTP client's default is used.")
+    fun getHttpConnectionMaxIdleTime(): Optional<@RangeConstraint(min=0.0) Long>
+
+    @Description("Close idle pooled connections on a background thread")
+    @DefaultBoolean(true)
+    fun getHttpUseIdleConnectionReaper(): Boolean
+
+    @Description("Enable TCP keep-alive on the connections to DynamoDB. Only used by the Apache HTTP client.")
+    @DefaultBoolean(false)
+    fun getHttpTcpKeepAlive(): Boolean
+
+    @Description("Amount of time in milliseconds to wait for data to be transferred over an established connection. If not set, the HTTP client's default is used.")
+    fun getHttpSocketTimeout(): Optional<@RangeConstraint(min=0.0) Long>
+
+    @Description("Amount of time in milliseconds to wait when establishing a connection. If not set, the HTTP client's default is used.")
+    fun getHttpConnectionTimeout(): Optional<@RangeConstraint(min=0.0) Long>
+
+    // Retries
+
+    @Description("Minimum amount of time in milliseconds to wait before retrying a throttled or failed request.")
+    @DefaultLong(25)
+    @RangeConstraint(min = 0.0)
+    fun getRetryBaseDelay(): Long
+
+    @Description("Maximum amount of time in milliseconds to wait before retrying a throttled or failed request.")
+    @DefaultLong(1000)
+    @RangeConstraint(min = 0.0)
+    fun getRetryMaxDelay(): Long
+
+    @Description("Maximum total amount of time in milliseconds spent waiting between the attempts of an operation, after which the operation fails.")
+    @DefaultLong(5000)
+    @RangeConstraint(min = 0.0)
+    fun getRetryMaxTotalDelay(): Long
+
+    @Description("Maximum number of times a failed request is retried by the DynamoDB client. If not set, DynamoDB's default is used.")
+    fun getSdkMaxRetries(): Optional<@RangeConstraint(min = 0.0, max = Int.MAX_VALUE.toDouble()) Long>
+
+    @Description("Reduce the rate of requests sent to DynamoDB when it starts throttling them, and progressively increase it again when throttling stops. Requests that would wait longer than the maximum retry delay for their turn fail.")
+    @DefaultBoolean(false)
+    fun getAdaptiveRetryRateEnabled(): Boolean
+
+    // Metrics
+
+    @Description("Collect latency, error and consumed capacity metrics for each table and operation, and expose them as JMX MBeans.")
+    @DefaultBoolean(false)
+    fun getMetricsEnabled(): Boolean
+
+    // Hedged reads
+
+    @Description("Send a second read request when the first one takes longer than usual, and use the first response. If not set, reads are not hedged.")
+    fun getHedgedReads(): Optional<HedgedReads>
+
+    interface HedgedReads
+    {
+        @get:Description("Amount of time in milliseconds to wait for the first request before sending the second one. If not set, the observed 95th percentile of the read latency is used.")
+        val delay: Optional<@RangeConstraint(min = 1.0) Long>
+
+        @get:Description("Maximum percentage of read requests that can be hedged.")
+        @get:DefaultLong(5)
+        @get:RangeConstraint(min = 1.0, max = 100.0)
+        val maxHedgedPercentage: Long
+    }
+
+    @Description("Send a single GetItem request when several identical ones are made at the same time, and share its response with all of them.")
+    @DefaultBoolean(false)
+    fun getCoalescedReadsEnabled(): Boolean
+
+    // Circuit breaker
+
+    @Description("Reject requests immediately, for each table and operation, while DynamoDB is failing. If not set, requests are never rejected.")
+    fun getCircuitBreaker(): Optional<CircuitBreaker>
+
+    interface CircuitBreaker
+    {
+        @get:Description("Percentage of failed requests, due to server errors, connection failures or timeouts, above which the circuit opens.")
+        @get:DefaultLong(50)
+        @get:RangeConstraint(min = 1.0, max = 100.0)
+        val failureRateThreshold: Long
+
+        @get:Description("Minimum number of requests in the window before the failure rate is evaluated.")
+        @get:DefaultLong(20)
+        @get:RangeConstraint(min = 1.0)
+        val minimumRequests: Long
+
+        @get:Description("Duration in seconds of the rolling window where the failure rate is measured.")
+        @get:DefaultLong(10)
+        @get:RangeConstraint(min = 1.0)
+        val windowDuration: Long
+
+        @get:Description("Amount of time in seconds that the circuit stays open before probing for recovery.")
+        @get:DefaultLong(5)
+        @get:RangeConstraint(min = 1.0)
+        val openDuration: Long
+
+        @get:Description("Number of successful probe requests needed to close the circuit.")
+        @get:DefaultLong(3)
+        @get:RangeConstraint(min = 1.0)
+        val halfOpenProbes: Long
+    }
+
+    // Concurrency limit
+
+    @Description("Limit the number of concurrent requests to DynamoDB, adapting the limit to the observed latency. If not set, concurrent requests are not limited.")
+    fun getConcurrencyLimit(): Optional<ConcurrencyLimit>
+
+    interface ConcurrencyLimit
+    {
+        @get:Description("The initial number of concurrent requests.")
+        @get:DefaultLong(20)
+        @get:RangeConstraint(min = 1.0)
+        val initialLimit: Long
+
+        @get:Description("The maximum number of concurrent requests.")
+        @get:DefaultLong(200)
+        @get:RangeConstraint(min = 1.0)
+        val maxLimit: Long
+
+        @get:Description("Maximum amount of time in milliseconds that a request waits when the limit is reached, after which it is rejected.")
+        @get:DefaultLong(50)
+        @get:RangeConstraint(min = 0.0)
+        val maxQueueTime: Long
+
+        @get:Description("Latency, as a percentage of the minimum observed latency, above which the limit is decreased.")
+        @get:DefaultLong(200)
+        @get:RangeConstraint(min = 100.0)
+        val latencyTolerance: Long
+    }
+
+    // Capacity limits
+
+    @Description("Client-side limits of the capacity units used per second on each table. Point reads and writes have priority over queries, and queries over scans.")
+    fun getTableCapacityLimits(): List<TableCapacityLimit>
+
+    interface TableCapacityLimit
+    {
+        @get:Description("The name of the table, e.g. curity-sessions.")
+        val tableName: String
+
+        @get:Description("Read capacity units per second. If not set, reads are not limited.")
+        val readCapacityUnits: Optional<@RangeConstraint(min = 1.0) Long>
+
+        @get:Description("Write capacity units per second. If not set, writes are not limited.")
+        val writeCapacityUnits: Optional<@RangeConstraint(min = 1.0) Long>
+
+        @get:Description("Maximum amount of time in milliseconds that a request waits for capacity before being rejected.")
+        @get:DefaultLong(1000)
+        @get:RangeConstraint(min = 0.0)
+        val maxWait: Long
+    }
+
+    // Read-ahead
+
+    @Description("Number of pages of a query or scan that are requested ahead of the page being read, as soon as the previous page arrives. If not set, each page is only requested after the previous one is read.")
+    fun getReadAheadPages(): Optional<@RangeConstraint(min = 1.0, max = 16.0) Long>
+
+    // Parallel scans
+
+    @Description("Split each scan into segments that are read in parallel. Capacity limits still apply to each request. If not set, scans are read sequentially.")
+    fun getParallelScans(): Optional<ParallelScans>
+
+    interface ParallelScans
+    {
+        @get:Description("Number of segments each scan is split into.")
+        @get:DefaultLong(4)
+        @get:RangeConstraint(min = 2.0, max = 1000.0)
+        val segments: Long
+
+        @get:Description("Maximum number of threads reading segments, shared by all scans.")
+        @get:DefaultLong(8)
+        @get:RangeConstraint(min = 1.0, max = 1000.0)
+        val maxThreads: Long
+    }
+
+    @Description("Run the index queries needed by a single filter in parallel, e.g. for a filter on either the username or the email. If not set, these queries run one after the other.")
+    fun getParallelQueries(): Optional<ParallelQueries>
+
+    interface ParallelQueries
+    {
+        @get:Description("Maximum number of threads running queries, shared by all filters.")
+        @get:DefaultLong(16)
+        @get:RangeConstraint(min = 1.0, max = 1000.0)
+        val maxThreads: Long
+    }
+
+    // Caches
+
+    @Description("Cache sessions in memory, on each node. If not set, sessions are always read from DynamoDB.")
+    fun getSessionCache(): Optional<SessionCache>
+
+    interface SessionCache
+    {
+        @get:Description("Maximum number of cached sessions.")
+        @get:DefaultLong(10000)
+        @get:RangeConstraint(min = 1.0)
+        val maxEntries: Long
+
+        @get:Description("Maximum amount of time in seconds that a session is used from the cache before being read again, which bounds how long changes made on other nodes go unnoticed.")
+        @get:DefaultLong(5)
+        @get:RangeConstraint(min = 1.0)
+        val maxStaleness: Long
+    }
+
+    @Description("Cache tokens in memory, on each node. If not set, tokens are always read from DynamoDB.")
+    fun getTokenCache(): Optional<TokenCache>
+
+    interface TokenCache
+    {
+        @get:Description("Maximum number of cached tokens, including unknown token hashes.")
+        @get:DefaultLong(10000)
+        @get:RangeConstraint(min = 1.0)
+        val maxEntries: Long
+
+        @get:Description("Maximum amount of time in seconds that a token is used from the cache before being read again, which bounds how long status changes made on other nodes go unnoticed.")
+        @get:DefaultLong(5)
+        @get:RangeConstraint(min = 1.0)
+        val maxStaleness: Long
+
+        @get:Description("Amount of time in seconds that an unknown token hash is remembered as such.")
+        @get:DefaultLong(2)
+        @get:RangeConstraint(min = 0.0)
+        val unknownTokenTtl: Long
+    }
+
+    @Description("Cache delegations in memory, on each node. If not set, delegations are always read from DynamoDB.")
+    fun getDelegationCache(): Optional<DelegationCache>
+
+    interface DelegationCache
+    {
+        @get:Description("Maximum number of cached delegations, including revoked or otherwise not issued ones.")
+        @get:DefaultLong(10000)
+        @get:RangeConstraint(min = 1.0)
+        val maxEntries: Long
+
+        @get:Description("Maximum amount of time in seconds that a delegation is used from the cache before being read again, which bounds how long a revocation made on another node goes unnoticed.")
+        @get:DefaultLong(5)
+        @get:RangeConstraint(min = 1.0)
+        val revocationPropagationWindow: Long
+    }
+
+    @Description("Cache dynamically registered clients in memory, on each node. If not set, clients are always read from DynamoDB.")
+    fun getDynamicClientCache(): Optional<DynamicClientCache>
+
+    interface DynamicClientCache
+    {
+        @get:Description("Maximum number of cached clients.")
+        @get:DefaultLong(1000)
+        @get:RangeConstraint(min = 1.0)
+        val maxEntries: Long
+
+        @get:Description("Maximum amount of time in seconds that a client is used from the cache without being checked for changes.")
+        @get:DefaultLong(60)
+        @get:RangeConstraint(min = 1.0)
+        val maxStaleness: Long
+
+        @get:Description("Amount of time in seconds after which a cached client is checked for changes in the background, while still being used from the cache. Should be less than the maximum staleness.")
+        @get:DefaultLong(45)
+        @get:RangeConstraint(min = 0.0)
+        val refreshAfter: Long
+    }
+
+    @Description("Cache user accounts in memory, on each node. If not set, accounts are always read from DynamoDB.")
+    fun getAccountCache(): Optional<AccountCache>
+
+    interface AccountCache
+    {
+        @get:Description("Maximum number of cache entries. Each account uses one entry for each of its account ID, username, email and phone number.")
+        @get:DefaultLong(10000)
+        @get:RangeConstraint(min = 1.0)
+        val maxEntries: Long
+
+        @get:Description("Amount of time in seconds that a cached account is used, when it is only being read, without checking that its version didn't change. Zero means that the version is always checked.")
+        @get:DefaultLong(0)
+        @get:RangeConstraint(min = 0.0)
+        val trustWindow: Long
+
+        @get:Description("Maximum amount of time in seconds that an account is kept in the cache, after which it is read again in full.")
+        @get:DefaultLong(300)
+        @get:RangeConstraint(min = 1.0)
+        val maxAge: Long
+    }
+
+    @Description("Remember consumed and expired nonces in memory, on each node, so that they are rejected without reading them from DynamoDB. If not set, nonces are always read from DynamoDB.")
+    fun getNonceCache(): Optional<NonceCache>
+
+    interface NonceCache
+    {
+        @get:Description("Maximum number of remembered nonces.")
+        @get:DefaultLong(100000)
+        @get:RangeConstraint(min = 1.0)
+        val maxEntries: Long
+    }
+
+    @Description("Cache items of the bucket and links tables in memory, on each node, within a shared memory budget. If not set, these items are always read from DynamoDB.")
+    fun getItemCache(): Optional<ItemCache>
+
+    interface ItemCache
+    {
+        @get:Description("Maximum amount of memory in kilobytes, as estimated from the size of the items, used by all the cached items.")
+        @get:DefaultLong(16384)
+        @get:RangeConstraint(min = 1.0)
+        val maxMemory: Long
+
+        @get:Description("Cache the items of the bucket table. If not set, they are not cached.")
+        val buckets: Optional<CachedTable>
+
+        @get:Description("Cache the items of the links table. If not set, they are not cached.")
+        val links: Optional<CachedTable>
+    }
+
+    interface CachedTable
+    {
+        @get:Description("Maximum amount of time in seconds that an item is used from the cache, which bounds how long changes made on other nodes go unnoticed.")
+        @get:DefaultLong(30)
+        @get:RangeConstraint(min = 1.0)
+        val ttl: Long
+
+        @get:Description("Maximum amount of memory in kilobytes used by the items of this table.")
+        @get:DefaultLong(8192)
+        @get:RangeConstraint(min = 1.0)
+        val maxMemory: Long
+
+        @get:Description("Also use the cache for strongly consistent reads. If disabled, only eventually consistent reads use the cache.")
+        @get:DefaultBoolean(true)
+        val cacheConsistentReads: Boolean
+    }
+
+    @Description("Remember where each page of the recently listed resources starts, so that later pages are read from there instead of from the first item. If not set, every page is read from the first item.")
+    fun getPaginationCheckpoints(): Optional<PaginationCheckpoints>
+
+    interface PaginationCheckpoints
+    {
+        @get:Description("Maximum number of listings whose checkpoints are remembered.")
+        @get:DefaultLong(1000)
+        @get:RangeConstraint(min = 1.0)
+        val maxEntries: Long
+
+        @get:Description("Amount of time in seconds that the checkpoints of a listing are used, which bounds how long items created or deleted since then can shift the pages.")
+        @get:DefaultLong(60)
+        @get:RangeConstraint(min = 1.0)
+        val ttl: Long
+    }
+
+    // Warm-up
+
+    @Description("Warm up the tables, connections and requests when the data source starts, before it is used. If not set, no warm-up is done.")
+    fun getWarmUp(): Optional<WarmUp>
+
+    interface WarmUp
+    {
+        @get:Description("Number of connections to open during the warm-up.")
+        @get:DefaultLong(10)
+        @get:RangeConstraint(min = 1.0, max = 1000.0)
+        val connections: Long
+
+        @get:Description("Also send write requests during the warm-up. These are conditional on a sentinel item that never exists, so they never modify data.")
+        @get:DefaultBoolean(true)
+        val exerciseWrites: Boolean
+    }
+
     // Services
 
     fun getExceptionFactory(): ExceptionFactory
@@ -22,6 +22,7 @@ import io.curity.identityserver.plugin.dynamodb.DynamoDBDeviceDataAccessProvider
 import io.curity.identityserver.plugin.dynamodb.DynamoDBDynamicallyRegisteredClientDataAccessProvider
 import io.curity.identityserver.plugin.dynamodb.DynamoDBSessionDataAccessProvider
 import io.curity.identityserver.plugin.dynamodb.DynamoDBUserAccountDataAccessProvider
+import io.curity.identityserver.plugin.dynamodb.DynamoDBWarmUp
 import io.curity.identityserver.plugin.dynamodb.configuration.DynamoDBDataAccessProviderConfiguration
 import io.curity.identityserver.plugin.dynamodb.token.DynamoDBDelegationDataAccessProvider
 import io.curity.identityserver.plugin.dynamodb.token.DynamoDBNonceDataAccessProvider
@@ -63,6 +64,8 @@ class DynamoDBDataAccessProviderDescriptor: DataAccessProviderPluginDescriptor<D
 
     override fun createManagedObject(configuration: DynamoDBDataAccessProviderConfiguration): Optional<out ManagedObject<DynamoDBDataAccessProviderConfiguration>>
     {
-        return Optional.of(DynamoDBClient(configuration))
+        val client = DynamoDBClient(configuration)
+        configuration.getWarmUp().ifPresent { DynamoDBWarmUp(client, it).run() }
+        return Optional.of(client)
     }
 }
@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import io.curity.identityserver.plugin.dynamodb.configuration.DynamoDBDataAccessProviderConfiguration
+import io.curity.identityserver.plugin.dynamodb.configuration.HttpClientType
+import software.amazon.awssdk.http.SdkHttpClient
+import software.amazon.awssdk.http.apache.ApacheHttpClient
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient
+import java.time.Duration
+import java.util.Optional
+
+/*
+ * Functions to create the HTTP clients used by the DynamoDB clients, according to the configured connection settings.
+ * The builders are handed to the DynamoDB client builders, so that the HTTP clients are closed with them.
+ */
+
+fun syncHttpClientBuilder(config: DynamoDBDataAccessProviderConfiguration): SdkHttpClient.Builder<*> =
+    when (config.getHttpClientType())
+    {
+        HttpClientType.apache -> ApacheHttpClient.builder().apply {
+            maxConnections(config.getHttpMaxConnections().toIntOrThrow("httpMaxConnections"))
+            config.getHttpConnectionAcquisitionTimeout().ifPresentMillis { connectionAcquisitionTimeout(it) }
+            config.getHttpConnectionTimeToLive().ifPresentSeconds { connectionTimeToLive(it) }
+            config.getHttpConnectionMaxIdleTime().ifPresentSeconds { connectionMaxIdleTime(it) }
+            useIdleConnectionReaper(config.getHttpUseIdleConnectionReaper())
+            tcpKeepAlive(config.getHttpTcpKeepAlive())
+            config.getHttpSocketTimeout().ifPresentMillis { socketTimeout(it) }
+            config.getHttpConnectionTimeout().ifPresentMillis { connectionTimeout(it) }
+        }
+        // The URL connection client doesn't have a configurable pool, it relies on the JDK's keep-alive cache
+        HttpClientType.url_connection -> UrlConnectionHttpClient.builder().apply {
+            config.getHttpSocketTimeout().ifPresentMillis { socketTimeout(it) }
+            config.getHttpConnectionTimeout().ifPresentMillis { connectionTimeout(it) }
+        }
+    }
+
+fun asyncHttpClientBuilder(config: DynamoDBDataAccessProviderConfiguration): SdkAsyncHttpClient.Builder<*> =
+    NettyNioAsyncHttpClient.builder().apply {
+        maxConcurrency(config.getHttpMaxConnections().toIntOrThrow("httpMaxConnections"))
+        config.getHttpConnectionAcquisitionTimeout().ifPresentMillis { connectionAcquisitionTimeout(it) }
+        config.getHttpConnectionTimeToLive().ifPresentSeconds { connectionTimeToLive(it) }
+        config.getHttpConnectionMaxIdleTime().ifPresentSeconds { connectionMaxIdleTime(it) }
+        useIdleConnectionReaper(config.getHttpUseIdleConnectionReaper())
+        config.getHttpSocketTimeout().ifPresentMillis {
+            readTimeout(it)
+            writeTimeout(it)
+        }
+        config.getHttpConnectionTimeout().ifPresentMillis { connectionTimeout(it) }
+    }
+
+private inline fun Optional<Long>.ifPresentMillis(action: (Duration) -> Unit)
+{
+    if (isPresent)
+    {
+        action(Duration.ofMillis(get()))
+    }
+}
+
+private inline fun Optional<Long>.ifPresentSeconds(action: (Duration) -> Unit)
+{
+    if (isPresent)
+    {
+        action(Duration.ofSeconds(get()))
+    }
+}
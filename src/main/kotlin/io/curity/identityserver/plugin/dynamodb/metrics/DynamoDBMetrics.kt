@@ -0,0 +1,136 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb.metrics
+
+import io.curity.identityserver.plugin.dynamodb.LocalCache
+import io.curity.identityserver.plugin.dynamodb.consumedCapacities
+import io.curity.identityserver.plugin.dynamodb.isReadOperation
+import org.slf4j.LoggerFactory
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbResponse
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ConcurrentHashMap
+import javax.management.JMException
+import javax.management.ObjectName
+
+/**
+ * Metrics for the requests sent to DynamoDB, by table and operation.
+ * Each table and operation pair is registered as an MBean when first used, and unregistered on [close].
+ */
+class DynamoDBMetrics(private val dataSourceId: String)
+{
+    private val _operations = ConcurrentHashMap<Pair<String, String>, OperationMetrics>()
+    private val _cacheNames = ConcurrentHashMap.newKeySet<ObjectName>()
+    private val _mBeanServer = ManagementFactory.getPlatformMBeanServer()
+
+    fun of(tableName: String, operationName: String): OperationMetrics =
+        _operations.computeIfAbsent(Pair(tableName, operationName)) {
+            OperationMetrics(tableName, operationName).also { register(it) }
+        }
+
+    fun recordSuccess(tableName: String, operationName: String, nanos: Long, response: DynamoDbResponse)
+    {
+        of(tableName, operationName).recordLatency(nanos)
+        response.consumedCapacities().forEach { capacity ->
+            val units = capacity.capacityUnits() ?: return@forEach
+            // Transactions report the capacity of each table they touch
+            val metrics = of(capacity.tableName() ?: tableName, operationName)
+            if (isReadOperation(operationName))
+            {
+                metrics.recordReadCapacity(units)
+            } else
+            {
+                metrics.recordWriteCapacity(units)
+            }
+        }
+    }
+
+    fun recordError(tableName: String, operationName: String, nanos: Long, errorType: String)
+    {
+        val metrics = of(tableName, operationName)
+        metrics.recordLatency(nanos)
+        metrics.recordError(errorType)
+    }
+
+    // Rejected requests are never sent, so they are neither counted as requests nor included in the latencies
+    fun recordRejected(tableName: String, operationName: String, reason: String) =
+        of(tableName, operationName).recordRejected(reason)
+
+    fun register(cache: LocalCache<*, *>)
+    {
+        val name = ObjectName(
+            "$DOMAIN:type=DynamoDBCache" +
+                    ",dataSource=${ObjectName.quote(dataSourceId)}" +
+                    ",name=${ObjectName.quote(cache.name)}"
+        )
+        if (register(cache, name))
+        {
+            _cacheNames.add(name)
+        }
+    }
+
+    fun close()
+    {
+        _operations.values.forEach { unregister(objectName(it)) }
+        _operations.clear()
+        _cacheNames.forEach { unregister(it) }
+        _cacheNames.clear()
+    }
+
+    private fun objectName(metrics: OperationMetrics) = ObjectName(
+        "$DOMAIN:type=DynamoDBMetrics" +
+                ",dataSource=${ObjectName.quote(dataSourceId)}" +
+                ",table=${ObjectName.quote(metrics.tableName)}" +
+                ",operation=${ObjectName.quote(metrics.operationName)}"
+    )
+
+    private fun register(metrics: OperationMetrics) = register(metrics, objectName(metrics))
+
+    private fun register(mBean: Any, name: ObjectName): Boolean
+    {
+        return try
+        {
+            _mBeanServer.registerMBean(mBean, name)
+            true
+        } catch (e: JMException)
+        {
+            // Metrics are still collected, even if not visible through JMX
+            _logger.warn("Unable to register DynamoDB metrics MBean: {}", e.message)
+            false
+        }
+    }
+
+    private fun unregister(name: ObjectName)
+    {
+        try
+        {
+            if (_mBeanServer.isRegistered(name))
+            {
+                _mBeanServer.unregisterMBean(name)
+            }
+        } catch (e: JMException)
+        {
+            _logger.debug("Unable to unregister DynamoDB metrics MBean: {}", e.message)
+        }
+    }
+
+    companion object
+    {
+        private val _logger = LoggerFactory.getLogger(DynamoDBMetrics::class.java)
+
+        private const val DOMAIN = "io.curity.identityserver.plugin.dynamodb"
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb.metrics
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Latency histogram with fixed buckets, safe to be updated concurrently without locking.
+ * Percentiles are approximated by the upper bound of the bucket where they fall.
+ */
+class LatencyHistogram
+{
+    private val _buckets = Array(BUCKET_UPPER_BOUNDS_MICROS.size + 1) { LongAdder() }
+    private val _count = LongAdder()
+    private val _sumMicros = LongAdder()
+
+    val count: Long
+        get() = _count.sum()
+
+    val meanMillis: Double
+        get()
+        {
+            val count = _count.sum()
+            return if (count == 0L) 0.0 else _sumMicros.sum().toDouble() / count / MICROS_PER_MILLI
+        }
+
+    fun record(nanos: Long)
+    {
+        val micros = TimeUnit.NANOSECONDS.toMicros(nanos)
+        _buckets[bucketIndex(micros)].increment()
+        _count.increment()
+        _sumMicros.add(micros)
+    }
+
+    /**
+     * Returns the approximate value in milliseconds below which [percentile] percent of the observations fall,
+     * or zero if there are no observations.
+     */
+    fun percentileMillis(percentile: Double): Double
+    {
+        val counts = _buckets.map { it.sum() }
+        val total = counts.sum()
+        if (total == 0L)
+        {
+            return 0.0
+        }
+        val rank = Math.ceil(total * percentile / 100.0).toLong()
+        var accumulated = 0L
+        counts.forEachIndexed { index, count ->
+            accumulated += count
+            if (accumulated >= rank)
+            {
+                return upperBoundMillis(index)
+            }
+        }
+        return upperBoundMillis(counts.size - 1)
+    }
+
+    companion object
+    {
+        private const val MICROS_PER_MILLI = 1000.0
+
+        private val BUCKET_UPPER_BOUNDS_MICROS = longArrayOf(
+            500, 1_000, 2_000, 3_000, 4_000, 5_000, 7_500, 10_000, 15_000, 20_000, 30_000, 50_000, 75_000,
+            100_000, 150_000, 200_000, 300_000, 500_000, 750_000, 1_000_000, 2_000_000, 5_000_000, 10_000_000
+        )
+
+        private fun bucketIndex(micros: Long): Int
+        {
+            val index = BUCKET_UPPER_BOUNDS_MICROS.binarySearch(micros)
+            return if (index >= 0) index else -index - 1
+        }
+
+        // The last bucket has no upper bound, so the largest finite bound is used
+        private fun upperBoundMillis(index: Int) =
+            BUCKET_UPPER_BOUNDS_MICROS[minOf(index, BUCKET_UPPER_BOUNDS_MICROS.size - 1)] / MICROS_PER_MILLI
+    }
+}
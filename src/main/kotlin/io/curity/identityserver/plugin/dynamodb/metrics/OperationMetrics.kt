@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb.metrics
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.DoubleAdder
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * JMX view of the metrics for a table and operation pair.
+ */
+interface OperationMetricsMBean
+{
+    val tableName: String
+    val operationName: String
+    val requestCount: Long
+    val errorCount: Long
+    val errorCountsByType: Map<String, Long>
+    val meanLatencyMillis: Double
+    val p50LatencyMillis: Double
+    val p95LatencyMillis: Double
+    val p99LatencyMillis: Double
+    val consumedReadCapacityUnits: Double
+    val consumedWriteCapacityUnits: Double
+    val collapsedRequestCount: Long
+    val rejectedRequestCount: Long
+    val rejectedCountsByReason: Map<String, Long>
+}
+
+class OperationMetrics(
+    override val tableName: String,
+    override val operationName: String
+) : OperationMetricsMBean
+{
+    val latency = LatencyHistogram()
+    private val _errors = ConcurrentHashMap<String, LongAdder>()
+    private val _readCapacityUnits = DoubleAdder()
+    private val _writeCapacityUnits = DoubleAdder()
+    private val _collapsedRequests = LongAdder()
+    private val _rejections = ConcurrentHashMap<String, LongAdder>()
+
+    fun recordLatency(nanos: Long) = latency.record(nanos)
+
+    fun recordError(type: String) = _errors.computeIfAbsent(type) { LongAdder() }.increment()
+
+    fun recordReadCapacity(units: Double) = _readCapacityUnits.add(units)
+
+    fun recordWriteCapacity(units: Double) = _writeCapacityUnits.add(units)
+
+    // A request that wasn't sent, since it used the response of an identical request in flight
+    fun recordCollapsed() = _collapsedRequests.increment()
+
+    // A request that wasn't sent, since it was rejected by a client-side limiter or circuit breaker
+    fun recordRejected(reason: String) = _rejections.computeIfAbsent(reason) { LongAdder() }.increment()
+
+    override val requestCount: Long
+        get() = latency.count
+
+    override val errorCount: Long
+        get() = _errors.values.map { it.sum() }.sum()
+
+    override val errorCountsByType: Map<String, Long>
+        get() = _errors.mapValues { it.value.sum() }
+
+    override val meanLatencyMillis: Double
+        get() = latency.meanMillis
+
+    override val p50LatencyMillis: Double
+        get() = latency.percentileMillis(50.0)
+
+    override val p95LatencyMillis: Double
+        get() = latency.percentileMillis(95.0)
+
+    override val p99LatencyMillis: Double
+        get() = latency.percentileMillis(99.0)
+
+    override val consumedReadCapacityUnits: Double
+        get() = _readCapacityUnits.sum()
+
+    override val consumedWriteCapacityUnits: Double
+        get() = _writeCapacityUnits.sum()
+
+    override val collapsedRequestCount: Long
+        get() = _collapsedRequests.sum()
+
+    override val rejectedRequestCount: Long
+        get() = _rejections.values.map { it.sum() }.sum()
+
+    override val rejectedCountsByReason: Map<String, Long>
+        get() = _rejections.mapValues { it.value.sum() }
+}
@@ -16,43 +16,69 @@
 
 package io.curity.identityserver.plugin.dynamodb
 
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue
 import software.amazon.awssdk.services.dynamodb.model.QueryRequest
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse
 import software.amazon.awssdk.services.dynamodb.model.ScanRequest
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse
+import java.util.concurrent.CompletableFuture
 
 // Returns a sequence with the items produced by a query, handling pagination if needed
-fun querySequence(request: QueryRequest, client: DynamoDBClient) = sequence {
-    var response = client.query(request)
-    if (response.hasItems())
+fun querySequence(request: QueryRequest, client: DynamoDBClient): Sequence<DynamoDBItem>
+{
+    if (client.readAheadPages > 0)
     {
-        response.items().forEach {
-            yield(it)
+        return readAheadSequence(client, { client.query(request).fetched() }) { exclusiveStartKey ->
+            client.queryAsync(request.toBuilder().exclusiveStartKey(exclusiveStartKey).build())
+                .thenApply { it.fetched() }
         }
-        while (response.hasLastEvaluatedKey())
+    }
+    return sequence {
+        var response = client.query(request)
+        if (response.hasItems())
         {
-            val newRequest = request.toBuilder().exclusiveStartKey(response.lastEvaluatedKey()).build()
-            response = client.query(newRequest)
-            if (response.hasItems())
+            response.items().forEach {
+                yield(it)
+            }
+            while (response.hasLastEvaluatedKey())
             {
-                response.items().forEach {
-                    yield(it)
+                val newRequest = request.toBuilder().exclusiveStartKey(response.lastEvaluatedKey()).build()
+                response = client.query(newRequest)
+                if (response.hasItems())
+                {
+                    response.items().forEach {
+                        yield(it)
+                    }
                 }
             }
         }
     }
 }
 
-// Returns a sequence with the items produced by a query, handling pagination if needed
-fun scanSequence(request: ScanRequest, client: DynamoDBClient) = sequence {
-    var response = client.scan(request)
-    if (response.hasItems())
+// Returns a sequence with the items produced by a scan, handling pagination if needed.
+// With parallel scans, the next page of each segment is read in parallel, and the items of those pages are produced
+// in segment order.
+fun scanSequence(request: ScanRequest, client: DynamoDBClient): Sequence<DynamoDBItem>
+{
+    val segmentRequests = request.segmentRequests(client)
+    if (client.readAheadPages > 0 && segmentRequests.size == 1)
     {
-        response.items().forEach {
-            yield(it)
+        return readAheadSequence(client, { client.scan(request).fetched() }) { exclusiveStartKey ->
+            client.scanAsync(request.toBuilder().exclusiveStartKey(exclusiveStartKey).build())
+                .thenApply { it.fetched() }
         }
-        while (response.hasLastEvaluatedKey())
-        {
-            val newRequest = request.toBuilder().exclusiveStartKey(response.lastEvaluatedKey()).build()
-            response = client.scan(newRequest)
+    }
+    return parallelScanSequence(segmentRequests, client)
+}
+
+private fun parallelScanSequence(requests: List<ScanRequest>, client: DynamoDBClient) = sequence {
+    var segmentRequests = requests
+    while (segmentRequests.isNotEmpty())
+    {
+        val responses = client.inParallelScans(
+            segmentRequests.map { segmentRequest -> { client.scan(segmentRequest) } }
+        )
+        responses.forEach { response ->
             if (response.hasItems())
             {
                 response.items().forEach {
@@ -60,9 +86,35 @@ fun scanSequence(request: ScanRequest, client: DynamoDBClient) = sequence {
                 }
             }
         }
+        segmentRequests = segmentRequests.zip(responses)
+            .filter { (_, response) -> response.hasLastEvaluatedKey() }
+            .map { (segmentRequest, response) ->
+                segmentRequest.toBuilder().exclusiveStartKey(response.lastEvaluatedKey()).build()
+            }
     }
 }
 
+// Returns a sequence with the items of the pages read ahead after the first one, which is read with the blocking
+// client, so that single page results don't need the asynchronous one.
+private fun readAheadSequence(
+    client: DynamoDBClient,
+    first: () -> ReadAhead.Fetched,
+    fetch: (Map<String, AttributeValue>) -> CompletableFuture<ReadAhead.Fetched>
+) = sequence {
+    val readAhead = ReadAhead(client.readAheadPages, client.readAheadExecutor, first(), fetch)
+    while (true)
+    {
+        val page = readAhead.next() ?: break
+        yieldAll(page.items)
+    }
+}
+
+private fun QueryResponse.fetched() =
+    ReadAhead.Fetched(items(), if (hasLastEvaluatedKey()) lastEvaluatedKey() else null)
+
+private fun ScanResponse.fetched() =
+    ReadAhead.Fetched(items(), if (hasLastEvaluatedKey()) lastEvaluatedKey() else null)
+
 fun count(request: QueryRequest, client: DynamoDBClient): Long
 {
     var response = client.query(request)
@@ -77,7 +129,14 @@ fun count(request: QueryRequest, client: DynamoDBClient): Long
     return counter
 }
 
-fun count(request: ScanRequest, client: DynamoDBClient): Long
+// With parallel scans, each segment is counted in parallel
+fun count(request: ScanRequest, client: DynamoDBClient): Long = client
+    .inParallelScans(
+        request.segmentRequests(client).map { segmentRequest -> { countSegment(segmentRequest, client) } }
+    )
+    .sum()
+
+private fun countSegment(request: ScanRequest, client: DynamoDBClient): Long
 {
     var response = client.scan(request)
     var counter = response.count().toLong()
@@ -91,3 +150,156 @@ fun count(request: ScanRequest, client: DynamoDBClient): Long
     return counter
 }
 
+// Splits a scan into the configured number of segments, unless it already is a segment
+private fun ScanRequest.segmentRequests(client: DynamoDBClient): List<ScanRequest> =
+    if (client.scanSegments == 1 || segment() != null)
+    {
+        listOf(this)
+    } else
+    {
+        (0 until client.scanSegments).map { toBuilder().segment(it).totalSegments(client.scanSegments).build() }
+    }
+
+/**
+ * A page of the items produced by a query or scan, with the cursor to the items after it, or null if there are none.
+ */
+class Page(val items: List<DynamoDBItem>, val next: PaginationCursor?)
+
+// Returns the [count] items at [startIndex] of a query, resuming from the closest checkpoint before it, if any
+fun queryPage(request: QueryRequest, client: DynamoDBClient, startIndex: Int, count: Int): List<DynamoDBItem>
+{
+    val checkpoints = client.paginationCheckpoints?.of(request)
+        ?: return page(PaginationCursor(null, startIndex), count, queryFetcher(request, client)).items
+    val (offset, cursor) = checkpoints.cursorTo(startIndex)
+    return page(cursor, count, queryFetcher(request, client)) { itemsRead, lastEvaluatedKey ->
+        checkpoints.record(offset + itemsRead, lastEvaluatedKey)
+    }.items
+}
+
+// Returns the [count] items at [startIndex] of a scan, resuming from the closest checkpoint before it, if any
+fun scanPage(request: ScanRequest, client: DynamoDBClient, startIndex: Int, count: Int): List<DynamoDBItem>
+{
+    val checkpoints = client.paginationCheckpoints?.of(request)
+        ?: return page(PaginationCursor(null, startIndex), count, scanFetcher(request, client)).items
+    val (offset, cursor) = checkpoints.cursorTo(startIndex)
+    return page(cursor, count, scanFetcher(request, client)) { itemsRead, lastEvaluatedKey ->
+        checkpoints.record(offset + itemsRead, lastEvaluatedKey)
+    }.items
+}
+
+/**
+ * Returns the [count] items at [startIndex] of a scan, together with the total number of items.
+ *
+ * Without checkpoints, all the items are read in a single pass. With them, the first listing also reads all the items,
+ * recording checkpoints along the way, and the total is then kept with those checkpoints, so that later pages only
+ * read from the closest checkpoint.
+ */
+fun scanPageWithTotal(
+    request: ScanRequest,
+    client: DynamoDBClient,
+    startIndex: Int,
+    count: Int
+): SelectedPage<DynamoDBItem>
+{
+    val checkpoints = client.paginationCheckpoints?.of(request)
+        ?: return scanSequence(request, client).selectPage(startIndex, count)
+    return pageWithTotal(checkpoints, startIndex, count, scanFetcher(request, client))
+}
+
+internal fun pageWithTotal(
+    checkpoints: PaginationCheckpoints.Checkpoints,
+    startIndex: Int,
+    count: Int,
+    fetch: Fetcher
+): SelectedPage<DynamoDBItem>
+{
+    checkpoints.totalCount?.let { totalCount ->
+        val (offset, cursor) = checkpoints.cursorTo(startIndex)
+        val items = page(cursor, count, fetch) { itemsRead, lastEvaluatedKey ->
+            checkpoints.record(offset + itemsRead, lastEvaluatedKey)
+        }.items
+        return SelectedPage(items, totalCount)
+    }
+
+    val page = sequence {
+        var exclusiveStartKey: Map<String, AttributeValue>? = null
+        var itemsRead = 0
+        do
+        {
+            val (items, lastEvaluatedKey) = fetch(exclusiveStartKey)
+            yieldAll(items)
+            itemsRead += items.size
+            lastEvaluatedKey?.let { checkpoints.record(itemsRead, it) }
+            exclusiveStartKey = lastEvaluatedKey
+        } while (exclusiveStartKey != null)
+    }.selectPage(startIndex, count)
+    checkpoints.totalCount = page.totalCount
+    return page
+}
+
+// Sends the request from the given start key, returning the items and the last evaluated key, if any
+internal typealias Fetcher = (Map<String, AttributeValue>?) -> Pair<List<DynamoDBItem>, Map<String, AttributeValue>?>
+
+private fun queryFetcher(request: QueryRequest, client: DynamoDBClient): Fetcher = { exclusiveStartKey ->
+    val response = client.query(
+        if (exclusiveStartKey == null) request else request.toBuilder().exclusiveStartKey(exclusiveStartKey).build()
+    )
+    Pair(response.items(), if (response.hasLastEvaluatedKey()) response.lastEvaluatedKey() else null)
+}
+
+private fun scanFetcher(request: ScanRequest, client: DynamoDBClient): Fetcher = { exclusiveStartKey ->
+    val response = client.scan(
+        if (exclusiveStartKey == null) request else request.toBuilder().exclusiveStartKey(exclusiveStartKey).build()
+    )
+    Pair(response.items(), if (response.hasLastEvaluatedKey()) response.lastEvaluatedKey() else null)
+}
+
+/*
+ * Reads the [count] items after [from], calling [onLastEvaluatedKey] with the number of items read since the
+ * cursor's start key, including skipped ones, whenever a response ends before the last item.
+ */
+internal fun page(
+    from: PaginationCursor,
+    count: Int,
+    fetch: Fetcher,
+    onLastEvaluatedKey: (itemsRead: Int, lastEvaluatedKey: Map<String, AttributeValue>) -> Unit = { _, _ -> }
+): Page
+{
+    if (count == 0)
+    {
+        return Page(listOf(), from)
+    }
+    val items = mutableListOf<DynamoDBItem>()
+    var exclusiveStartKey = from.exclusiveStartKey
+    var skip = from.skip
+    var itemsRead = 0
+    while (true)
+    {
+        val (responseItems, lastEvaluatedKey) = fetch(exclusiveStartKey)
+        itemsRead += responseItems.size
+        lastEvaluatedKey?.let { onLastEvaluatedKey(itemsRead, it) }
+
+        val missing = count - items.size
+        if (responseItems.size - skip > missing)
+        {
+            // The page ends inside this response, so the next one starts after the items taken from it
+            items.addAll(responseItems.subList(skip, skip + missing))
+            return Page(items, PaginationCursor(exclusiveStartKey, skip + missing))
+        }
+        if (responseItems.size > skip)
+        {
+            items.addAll(responseItems.subList(skip, responseItems.size))
+        }
+        skip = maxOf(0, skip - responseItems.size)
+
+        if (lastEvaluatedKey == null)
+        {
+            return Page(items, null)
+        }
+        if (items.size == count)
+        {
+            return Page(items, PaginationCursor(lastEvaluatedKey, 0))
+        }
+        exclusiveStartKey = lastEvaluatedKey
+    }
+}
@@ -25,33 +25,54 @@ class DynamoDBQueryBuilder
 {
     companion object
     {
-        fun buildQuery(keyCondition: QueryPlan.KeyCondition, products: List<Product>): DynamoDBQuery
+        fun buildQuery(keyCondition: QueryPlan.KeyCondition, products: List<Product>): DynamoDBQuery =
+            buildQueryTemplate(keyCondition, products).bind(NO_VALUES)
+
+        fun buildScan(expression: DisjunctiveNormalForm): DynamoDBScan =
+            buildScanTemplate(expression).bind(NO_VALUES)
+
+        /**
+         * Builds a query where the [QueryParameter] values are bound afterwards, via [DynamoDBQueryTemplate.bind].
+         */
+        fun buildQueryTemplate(keyCondition: QueryPlan.KeyCondition, products: List<Product>): DynamoDBQueryTemplate
         {
             val builder = DynamoDBQueryBuilder()
             val filterExpression = builder.toDynamoExpression(products)
             val keyExpression = builder.toDynamoExpression(keyCondition)
-            return DynamoDBQuery(
-                keyCondition.index.name,
-                keyExpression,
-                filterExpression,
-                builder.valueMap,
-                builder.nameMap
+            return DynamoDBQueryTemplate(
+                DynamoDBQuery(
+                    keyCondition.index.name,
+                    keyExpression,
+                    filterExpression,
+                    builder.valueMap,
+                    builder.nameMap
+                ),
+                builder.parameterMap
             )
         }
 
-        fun buildScan(expression: DisjunctiveNormalForm): DynamoDBScan
+        /**
+         * Builds a scan where the [QueryParameter] values are bound afterwards, via [DynamoDBScanTemplate.bind].
+         */
+        fun buildScanTemplate(expression: DisjunctiveNormalForm): DynamoDBScanTemplate
         {
             val builder = DynamoDBQueryBuilder()
             val filterExpression = builder.toDynamoExpression(expression.products)
-            return DynamoDBScan(
-                filterExpression,
-                builder.valueMap,
-                builder.nameMap
+            return DynamoDBScanTemplate(
+                DynamoDBScan(
+                    filterExpression,
+                    builder.valueMap,
+                    builder.nameMap
+                ),
+                builder.parameterMap
             )
         }
+
+        private val NO_VALUES = listOf<Any>()
     }
 
     private val valueMap = mutableMapOf<String, AttributeValue>()
+    private val parameterMap = mutableMapOf<String, ParameterBinding>()
     private val nameMap = mutableMapOf<String, String>()
     private val valueAliasCounter = mutableMapOf<String, Int>()
 
@@ -117,9 +138,44 @@ class DynamoDBQueryBuilder
     {
         val counter = valueAliasCounter.merge(attribute.name, 1) { old, new -> old + new } ?: 1
         val colonName = colonName(attribute.name, counter)
-        valueMap[colonName] = attribute.toAttrValueWithCast(value)
+        if (value is QueryParameter)
+        {
+            parameterMap[colonName] = ParameterBinding(attribute, value)
+        } else
+        {
+            valueMap[colonName] = attribute.toAttrValueWithCast(value)
+        }
         return colonName
     }
 
     private fun colonName(name: String, counter: Int) = ":${name}_$counter"
+}
+
+class ParameterBinding(val attribute: DynamoDBAttribute<*>, val parameter: QueryParameter)
+
+private fun Map<String, ParameterBinding>.bind(values: List<Any>): Map<String, AttributeValue> =
+    mapValues { (_, binding) -> binding.attribute.toAttrValueWithCast(values[binding.parameter.index]) }
+
+/**
+ * A [DynamoDBQuery] with the value aliases that are still to be bound to the parameters of a cached query plan.
+ */
+class DynamoDBQueryTemplate(private val query: DynamoDBQuery, private val parameters: Map<String, ParameterBinding>)
+{
+    fun bind(values: List<Any>) =
+        if (parameters.isEmpty()) query else query.copy(valueMap = query.valueMap + parameters.bind(values))
+}
+
+/**
+ * A [DynamoDBScan] with the value aliases that are still to be bound to the parameters of a cached query plan.
+ */
+class DynamoDBScanTemplate(private val scan: DynamoDBScan, private val parameters: Map<String, ParameterBinding>)
+{
+    fun bind(values: List<Any>) =
+        if (parameters.isEmpty())
+        {
+            scan
+        } else
+        {
+            DynamoDBScan(scan.filterExpression, scan.valueMap + parameters.bind(values), scan.nameMap)
+        }
 }
\ No newline at end of file
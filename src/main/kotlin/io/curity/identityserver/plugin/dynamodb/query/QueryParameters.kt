@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb.query
+
+/*
+ * Classes and functions to separate the shape of an expression from its values, so that the query plan computed
+ * for a shape can be reused with different values.
+ */
+
+/**
+ * Placeholder for the value at [index] of the values bound to a parameterized expression.
+ */
+data class QueryParameter(val index: Int)
+
+/**
+ * An [Expression] where every value was replaced by a [QueryParameter], together with the replaced values.
+ *
+ * Equal values are replaced by the same parameter, so that expressions with the same shape and the same pattern of
+ * repeated values are equal, and normalize into plans with the same structure.
+ */
+class ParameterizedExpression private constructor(
+    val expression: Expression,
+    val values: List<Any>
+)
+{
+    companion object
+    {
+        fun of(expression: Expression): ParameterizedExpression
+        {
+            val values = mutableListOf<Any>()
+            val parameters = mutableMapOf<Any, QueryParameter>()
+
+            fun parameterize(expr: Expression): Expression = when (expr)
+            {
+                is UnaryAttributeExpression -> expr
+                is BinaryAttributeExpression -> expr.copy(
+                    value = parameters.getOrPut(expr.value) {
+                        values.add(expr.value)
+                        QueryParameter(values.size - 1)
+                    }
+                )
+                is LogicalExpression -> expr.copy(left = parameterize(expr.left), right = parameterize(expr.right))
+                is NegationExpression -> NegationExpression(parameterize(expr.inner))
+            }
+
+            return ParameterizedExpression(parameterize(expression), values)
+        }
+    }
+}
+
+/*
+ * Functions to bind values into parameterized expressions and query plans
+ */
+private fun Any.bindTo(values: List<Any>) = if (this is QueryParameter) values[index] else this
+
+fun BinaryAttributeExpression.bind(values: List<Any>) = copy(value = value.bindTo(values))
+
+fun AttributeExpression.bind(values: List<Any>): AttributeExpression = when (this)
+{
+    is UnaryAttributeExpression -> this
+    is BinaryAttributeExpression -> bind(values)
+}
+
+fun Product.bind(values: List<Any>) = Product(terms.map { it.bind(values) }.toSet())
+
+fun DisjunctiveNormalForm.bind(values: List<Any>) = DisjunctiveNormalForm(products.map { it.bind(values) }.toSet())
+
+fun QueryPlan.RangeCondition.bind(values: List<Any>) = when (this)
+{
+    is QueryPlan.RangeCondition.Binary -> copy(attributeExpression = attributeExpression.bind(values))
+    is QueryPlan.RangeCondition.Between -> copy(lower = lower.bindTo(values), higher = higher.bindTo(values))
+}
+
+fun QueryPlan.KeyCondition.bind(values: List<Any>) = copy(
+    partitionCondition = partitionCondition.bind(values),
+    sortCondition = sortCondition?.bind(values)
+)
@@ -17,6 +17,8 @@
 package io.curity.identityserver.plugin.dynamodb.query
 
 import io.curity.identityserver.plugin.dynamodb.DynamoDBAttribute
+import io.curity.identityserver.plugin.dynamodb.DynamoDBQuery
+import io.curity.identityserver.plugin.dynamodb.DynamoDBScan
 
 sealed class QueryPlan
 {
@@ -46,3 +48,35 @@ sealed class QueryPlan
         data class Between(val attribute: DynamoDBAttribute<*>, val lower: Any, val higher: Any) : RangeCondition()
     }
 }
+
+/**
+ * A [QueryPlan] together with the DynamoDB queries or scan that implement it.
+ * [QueryPlanner] binds them from the ones built for its cached plans, rather than building them again.
+ */
+class PreparedQueryPlan internal constructor(
+    val plan: QueryPlan,
+    private val dynamoDBQueries: Map<QueryPlan.KeyCondition, DynamoDBQuery>,
+    private val dynamoDBScan: DynamoDBScan?
+)
+{
+    fun toDynamoDBQuery(keyCondition: QueryPlan.KeyCondition): DynamoDBQuery = dynamoDBQueries.getValue(keyCondition)
+
+    fun toDynamoDBScan(): DynamoDBScan =
+        dynamoDBScan ?: throw IllegalStateException("The query plan doesn't use a scan")
+
+    companion object
+    {
+        // Builds the DynamoDB queries or scan of a plan that wasn't computed by a planner
+        fun of(plan: QueryPlan) = when (plan)
+        {
+            is QueryPlan.UsingQueries -> PreparedQueryPlan(
+                plan,
+                plan.queries.mapValues { (keyCondition, products) ->
+                    DynamoDBQueryBuilder.buildQuery(keyCondition, products)
+                },
+                null
+            )
+            is QueryPlan.UsingScan -> PreparedQueryPlan(plan, mapOf(), DynamoDBQueryBuilder.buildScan(plan.expression))
+        }
+    }
+}
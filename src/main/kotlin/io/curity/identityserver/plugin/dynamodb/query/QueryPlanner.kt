@@ -17,16 +17,55 @@
 package io.curity.identityserver.plugin.dynamodb.query
 
 import io.curity.identityserver.plugin.dynamodb.DynamoDBAttribute
+import io.curity.identityserver.plugin.dynamodb.DynamoDBQuery
 import org.slf4j.LoggerFactory
 import se.curity.identityserver.sdk.data.query.Filter
 
-class QueryPlanner(private val tableQueryCapabilities: TableQueryCapabilities)
+/**
+ * Computes the [QueryPlan] for an expression, and prepares the DynamoDB queries or scan that implement it.
+ *
+ * Plans are cached by the expression's shape, i.e., the expression with its values replaced by parameters,
+ * so that repeated filters only differing in their values only need to bind those values into the cached plan
+ * and into its DynamoDB queries or scan.
+ * Planners are meant to be shared, since the cache is bounded to [maxCachedPlans] shapes per planner.
+ */
+class QueryPlanner(
+    private val tableQueryCapabilities: TableQueryCapabilities,
+    private val maxCachedPlans: Int = DEFAULT_MAX_CACHED_PLANS
+)
 {
     private val expressionBuilder = ExpressionMapper(tableQueryCapabilities.attributeMap)
 
+    private val _cachedPlans = object : LinkedHashMap<Expression, PlanTemplate>(16, 0.75f, true)
+    {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Expression, PlanTemplate>) =
+            size > maxCachedPlans
+    }
+
     fun build(filterExpression: Filter) = build(expressionBuilder.from(filterExpression))
 
-    fun build(expression: Expression): QueryPlan
+    fun build(expression: Expression): QueryPlan = prepare(expression).plan
+
+    fun prepare(filterExpression: Filter) = prepare(expressionBuilder.from(filterExpression))
+
+    fun prepare(expression: Expression): PreparedQueryPlan
+    {
+        val parameterized = ParameterizedExpression.of(expression)
+        val cachedTemplate = synchronized(_cachedPlans) { _cachedPlans[parameterized.expression] }
+        val template = if (cachedTemplate != null)
+        {
+            _logger.trace("Using cached query plan for expression shape: {}", parameterized.expression)
+            cachedTemplate
+        } else
+        {
+            val newTemplate = PlanTemplate(buildUncached(parameterized.expression))
+            synchronized(_cachedPlans) { _cachedPlans[parameterized.expression] = newTemplate }
+            newTemplate
+        }
+        return template.bind(parameterized.values)
+    }
+
+    private fun buildUncached(expression: Expression): QueryPlan
     {
         _logger.debug("Computing query plan for non-normalized expression: {}", expression)
         val normalized = normalize(expression)
@@ -181,9 +220,53 @@ class QueryPlanner(private val tableQueryCapabilities: TableQueryCapabilities)
             NO_RANGE_CONDITION
         }
 
+    /*
+     * A plan computed for an expression shape, with its DynamoDB queries or scan built once.
+     */
+    private class PlanTemplate(private val plan: QueryPlan)
+    {
+        private val queryTemplates = if (plan is QueryPlan.UsingQueries)
+        {
+            plan.queries.mapValues { (keyCondition, products) ->
+                DynamoDBQueryBuilder.buildQueryTemplate(keyCondition, products)
+            }
+        } else
+        {
+            mapOf()
+        }
+
+        private val scanTemplate = if (plan is QueryPlan.UsingScan)
+        {
+            DynamoDBQueryBuilder.buildScanTemplate(plan.expression)
+        } else
+        {
+            null
+        }
+
+        fun bind(values: List<Any>): PreparedQueryPlan = when (plan)
+        {
+            is QueryPlan.UsingQueries ->
+            {
+                val queries = linkedMapOf<QueryPlan.KeyCondition, List<Product>>()
+                val dynamoDBQueries = mutableMapOf<QueryPlan.KeyCondition, DynamoDBQuery>()
+                plan.queries.forEach { (keyCondition, products) ->
+                    val boundKeyCondition = keyCondition.bind(values)
+                    queries[boundKeyCondition] = products.map { it.bind(values) }
+                    dynamoDBQueries[boundKeyCondition] = queryTemplates.getValue(keyCondition).bind(values)
+                }
+                PreparedQueryPlan(QueryPlan.UsingQueries(queries), dynamoDBQueries, null)
+            }
+            is QueryPlan.UsingScan -> PreparedQueryPlan(
+                QueryPlan.UsingScan(plan.expression.bind(values)), mapOf(), scanTemplate?.bind(values)
+            )
+        }
+    }
+
     companion object
     {
         private val _logger = LoggerFactory.getLogger(QueryPlanner::class.java)
+
+        private const val DEFAULT_MAX_CACHED_PLANS = 256
     }
 }
 
@@ -144,6 +144,9 @@ private fun <T : Comparable<T>> compare(a: T?, b: T?) =
         a.compareTo(b)
     }
 
+// Orders the values read by the attributes that have a comparator, in the same way as that comparator
+val sortKeyComparator = Comparator<Any?> { a, b -> compareValues(a as Comparable<*>?, b as Comparable<*>?) }
+
 class StringAttribute(name: String) : BaseAttribute<String>(name, AttributeType.S)
 {
     override fun toAttrValue(value: String): AttributeValue = AttributeValue.builder().s(value).build()
@@ -158,7 +161,10 @@ class EnumAttribute<T : Enum<T>>(
     private val valuesMap: Map<String, T>
 ) : BaseAttribute<T>(name, AttributeType.S)
 {
-    override fun toAttrValue(value: T): AttributeValue = AttributeValue.builder().s(value.name).build()
+    // The attribute values are immutable, so they are built only once for each enum value
+    private val attrValues = valuesMap.values.associateWith { AttributeValue.builder().s(it.name).build() }
+
+    override fun toAttrValue(value: T): AttributeValue = attrValues.getValue(value)
     override fun from(attrValue: AttributeValue): T = valuesMap[attrValue.s()]
         ?: throw SchemaErrorException(this, attrValue.s())
 
@@ -377,10 +383,58 @@ class PartitionAndSortIndex<T1, T2>(
         sortAttribute.hashName to sortAttribute.name
     )
 
+    // For sort values that are constants, with the expression value pair built once via [sortAttribute]
+    fun expressionValueMap(first: T1, preparedSecond: Pair<String, AttributeValue>) = mapOf(
+        partitionAttribute.toExpressionNameValuePair(first),
+        preparedSecond
+    )
+
     val keyConditionExpression =
         "${partitionAttribute.hashName} = ${partitionAttribute.colonName} AND ${sortAttribute.hashName} = ${sortAttribute.colonName}"
 }
 
+/**
+ * An update request where the parts that are the same on every call, i.e., the expressions, the expression
+ * attribute names and the constant expression attribute values, are computed once per table and operation.
+ * Only the key and the remaining values are bound on each call, via [request].
+ */
+class PreparedUpdate(
+    private val table: Table,
+    private val updateExpression: String,
+    private val conditionExpression: String? = null,
+    private val attributeNames: Map<String, String> = mapOf(),
+    private val constantValues: Map<String, AttributeValue> = mapOf()
+)
+{
+    fun request(key: Map<String, AttributeValue>, values: Map<String, AttributeValue> = mapOf())
+            : UpdateItemRequest.Builder
+    {
+        val builder = UpdateItemRequest.builder()
+            .tableName(table.name)
+            .key(key)
+            .updateExpression(updateExpression)
+        if (conditionExpression != null)
+        {
+            builder.conditionExpression(conditionExpression)
+        }
+        if (attributeNames.isNotEmpty())
+        {
+            builder.expressionAttributeNames(attributeNames)
+        }
+        val allValues = when
+        {
+            values.isEmpty() -> constantValues
+            constantValues.isEmpty() -> values
+            else -> constantValues + values
+        }
+        if (allValues.isNotEmpty())
+        {
+            builder.expressionAttributeValues(allValues)
+        }
+        return builder
+    }
+}
+
 fun <T> MutableMap<String, AttributeValue>.addAttr(attribute: DynamoDBAttribute<T>, value: T)
 {
     this[attribute.name] = attribute.toAttrValue(value)
@@ -0,0 +1,87 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import java.util.PriorityQueue
+
+/*
+ * Functions to select a page of a sequence without keeping all of its elements in memory
+ */
+
+/**
+ * The elements of a page, together with the number of elements in the whole sequence.
+ */
+class SelectedPage<T>(val items: List<T>, val totalCount: Long)
+
+// Returns the [count] elements at [startIndex], in the sequence's order
+fun <T> Sequence<T>.selectPage(startIndex: Int, count: Int): SelectedPage<T>
+{
+    val items = mutableListOf<T>()
+    var totalCount = 0L
+    forEach {
+        if (totalCount >= startIndex && items.size < count)
+        {
+            items.add(it)
+        }
+        totalCount++
+    }
+    return SelectedPage(items, totalCount)
+}
+
+/**
+ * Returns the [count] elements at [startIndex] once sorted by their [sortKey], as [sortedWith] would.
+ *
+ * Only the first `startIndex + count` elements are kept, in a bounded heap, so memory is proportional to the page
+ * end and sorting takes O(n log k). The sort key of each element is computed only once.
+ */
+fun <T, K> Sequence<T>.selectSortedPage(
+    startIndex: Int,
+    count: Int,
+    sortKey: (T) -> K,
+    comparator: Comparator<in K>
+): SelectedPage<T>
+{
+    val maxSize = minOf(startIndex.toLong() + count, Int.MAX_VALUE.toLong()).toInt()
+    if (maxSize == 0)
+    {
+        return SelectedPage(listOf(), count().toLong())
+    }
+
+    // Equal keys are ordered by position, to keep the sort stable
+    val order = Comparator<Keyed<T, K>> { a, b -> comparator.compare(a.key, b.key) }
+        .thenComparingLong { it.position }
+    // The head of the heap is the last element of the page so far
+    val heap = PriorityQueue(order.reversed())
+    var totalCount = 0L
+    forEach {
+        val keyed = Keyed(it, sortKey(it), totalCount++)
+        if (heap.size < maxSize)
+        {
+            heap.add(keyed)
+        } else if (order.compare(keyed, heap.peek()) < 0)
+        {
+            heap.poll()
+            heap.add(keyed)
+        }
+    }
+    val items = heap.sortedWith(order)
+        .drop(startIndex)
+        .map { it.element }
+    return SelectedPage(items, totalCount)
+}
+
+private class Keyed<T, K>(val element: T, val key: K, val position: Long)
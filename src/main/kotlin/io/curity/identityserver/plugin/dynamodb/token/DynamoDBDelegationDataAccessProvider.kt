@@ -15,27 +15,34 @@
  */
 package io.curity.identityserver.plugin.dynamodb.token
 
+import io.curity.identityserver.plugin.dynamodb.DynamoDBAttribute
 import io.curity.identityserver.plugin.dynamodb.DynamoDBClient
 import io.curity.identityserver.plugin.dynamodb.DynamoDBItem
 import io.curity.identityserver.plugin.dynamodb.EnumAttribute
+import io.curity.identityserver.plugin.dynamodb.LocalCache
 import io.curity.identityserver.plugin.dynamodb.NumberLongAttribute
 import io.curity.identityserver.plugin.dynamodb.PartitionAndSortIndex
 import io.curity.identityserver.plugin.dynamodb.PartitionOnlyIndex
+import io.curity.identityserver.plugin.dynamodb.PreparedUpdate
 import io.curity.identityserver.plugin.dynamodb.PrimaryKey
 import io.curity.identityserver.plugin.dynamodb.StringAttribute
 import io.curity.identityserver.plugin.dynamodb.Table
 import io.curity.identityserver.plugin.dynamodb.configuration.DynamoDBDataAccessProviderConfiguration
 import io.curity.identityserver.plugin.dynamodb.configureWith
 import io.curity.identityserver.plugin.dynamodb.count
-import io.curity.identityserver.plugin.dynamodb.query.DynamoDBQueryBuilder
 import io.curity.identityserver.plugin.dynamodb.query.Index
+import io.curity.identityserver.plugin.dynamodb.query.PreparedQueryPlan
 import io.curity.identityserver.plugin.dynamodb.query.QueryPlan
 import io.curity.identityserver.plugin.dynamodb.query.QueryPlanner
 import io.curity.identityserver.plugin.dynamodb.query.TableQueryCapabilities
 import io.curity.identityserver.plugin.dynamodb.query.UnsupportedQueryException
 import io.curity.identityserver.plugin.dynamodb.query.filterWith
+import io.curity.identityserver.plugin.dynamodb.queryPage
 import io.curity.identityserver.plugin.dynamodb.querySequence
+import io.curity.identityserver.plugin.dynamodb.scanPage
 import io.curity.identityserver.plugin.dynamodb.scanSequence
+import io.curity.identityserver.plugin.dynamodb.selectSortedPage
+import io.curity.identityserver.plugin.dynamodb.sortKeyComparator
 import io.curity.identityserver.plugin.dynamodb.toIntOrThrow
 import org.slf4j.LoggerFactory
 import se.curity.identityserver.sdk.attribute.AccountAttributes
@@ -53,7 +60,7 @@ import software.amazon.awssdk.services.dynamodb.model.PutItemRequest
 import software.amazon.awssdk.services.dynamodb.model.QueryRequest
 import software.amazon.awssdk.services.dynamodb.model.ScanRequest
 import software.amazon.awssdk.services.dynamodb.model.Select
-import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest
+import java.util.concurrent.TimeUnit
 
 class DynamoDBDelegationDataAccessProvider(
     private val _dynamoDBClient: DynamoDBClient,
@@ -62,6 +69,15 @@ class DynamoDBDelegationDataAccessProvider(
 {
     private val _jsonHandler = _configuration.getJsonHandler()
 
+    // Delegations that are not issued are cached as entries without a delegation
+    private class CachedDelegation(val delegation: Delegation?)
+
+    private val _cacheConfiguration: DynamoDBDataAccessProviderConfiguration.DelegationCache? =
+        _configuration.getDelegationCache().orElse(null)
+    private val _cache: LocalCache<String, CachedDelegation>? = _cacheConfiguration?.let {
+        _dynamoDBClient.localCache(CACHE_NAME, it.maxEntries)
+    }
+
     /*
      * There is one attribute for each property in the Delegation interface:
      * - There is an extra version attribute in the table that doesn't exist in the Delegation interface
@@ -185,6 +201,9 @@ class DynamoDBDelegationDataAccessProvider(
 
     override fun getById(id: String): Delegation?
     {
+        _cache?.get(id)?.let { return it.delegation }
+        val writeGeneration = _cache?.writeGeneration
+
         val request = GetItemRequest.builder()
             .tableName(DelegationTable.name)
             .key(mapOf(DelegationTable.id.toNameValuePair(id)))
@@ -204,9 +223,10 @@ class DynamoDBDelegationDataAccessProvider(
         val status = DelegationTable.status.from(item)
         if (status != DelegationStatus.issued)
         {
+            cache(id, null, writeGeneration)
             return null
         }
-        return item.toDelegation()
+        return item.toDelegation().also { cache(id, it, writeGeneration) }
     }
 
     override fun getByAuthorizationCodeHash(authorizationCodeHash: String): Delegation?
@@ -237,21 +257,20 @@ class DynamoDBDelegationDataAccessProvider(
             .tableName(DelegationTable.name)
             .item(delegation.toItem())
             .build()
+        val writeGeneration = _cache?.writeGeneration
 
         _dynamoDBClient.putItem(request)
+        cache(delegation.id, if (delegation.status == DelegationStatus.issued) delegation else null, writeGeneration)
     }
 
     override fun setStatus(id: String, newStatus: DelegationStatus): Long
     {
-        val request = UpdateItemRequest.builder()
-            .tableName(DelegationTable.name)
-            .key(mapOf(DelegationTable.id.toNameValuePair(id)))
-            .conditionExpression(updateConditionExpression)
-            .updateExpression("SET ${DelegationTable.status.hashName} = ${DelegationTable.status.colonName}")
-            .expressionAttributeValues(mapOf(DelegationTable.status.toExpressionNameValuePair(newStatus)))
-            .expressionAttributeNames(mapOf(DelegationTable.status.toNamePair()))
+        val request = statusUpdates.getValue(newStatus)
+            .request(mapOf(DelegationTable.id.toNameValuePair(id)))
             .build()
 
+        // A revoked delegation must not be served from the cache, nor cached again by a read sent before the update
+        _cache?.invalidate(id)
         try
         {
             _dynamoDBClient.updateItem(request)
@@ -259,10 +278,29 @@ class DynamoDBDelegationDataAccessProvider(
         {
             // this exceptions means the entry does not exists
             return 0
+        } finally
+        {
+            _cache?.invalidate(id)
         }
         return 1
     }
 
+    // Delegations are cached until they expire, or for the revocation propagation window, whatever happens first
+    private fun cache(id: String, delegation: Delegation?, writeGeneration: Long?)
+    {
+        val cacheConfiguration = _cacheConfiguration ?: return
+        val windowEndMillis =
+            System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(cacheConfiguration.revocationPropagationWindow)
+        val expiresAtMillis = if (delegation == null)
+        {
+            windowEndMillis
+        } else
+        {
+            minOf(TimeUnit.SECONDS.toMillis(delegation.expires), windowEndMillis)
+        }
+        _cache?.put(id, CachedDelegation(delegation), expiresAtMillis, writeGeneration)
+    }
+
     override fun getByOwner(owner: String, startIndex: Long, count: Long): Collection<Delegation>
     {
         val validatedStartIndex = startIndex.toIntOrThrow("startIndex")
@@ -273,17 +311,14 @@ class DynamoDBDelegationDataAccessProvider(
             .indexName(index.name)
             .keyConditionExpression(index.keyConditionExpression)
             .expressionAttributeValues(
-                index.expressionValueMap(owner, DelegationStatus.issued)
+                index.expressionValueMap(owner, issuedStatusExpressionAttribute)
             )
             .expressionAttributeNames(index.expressionNameMap)
             .limit(validatedCount)
             .build()
 
-        return querySequence(request, _dynamoDBClient)
-            .drop(validatedStartIndex)
+        return queryPage(request, _dynamoDBClient, validatedStartIndex, validatedCount)
             .map { it.toDelegation() }
-            .take(validatedCount)
-            .toList()
     }
 
     override fun getCountByOwner(owner: String): Long
@@ -294,7 +329,7 @@ class DynamoDBDelegationDataAccessProvider(
             .indexName(index.name)
             .keyConditionExpression(index.keyConditionExpression)
             .expressionAttributeValues(
-                index.expressionValueMap(owner, DelegationStatus.issued)
+                index.expressionValueMap(owner, issuedStatusExpressionAttribute)
             )
             .expressionAttributeNames(index.expressionNameMap)
             .select(Select.COUNT)
@@ -315,11 +350,8 @@ class DynamoDBDelegationDataAccessProvider(
             .expressionAttributeNames(issuedStatusExpressionAttributeNameMap)
             .build()
 
-        return scanSequence(request, _dynamoDBClient)
-            .drop(validatedStartIndex)
+        return scanPage(request, _dynamoDBClient, validatedStartIndex, validatedCount)
             .map { it.toDelegation() }
-            .take(validatedCount)
-            .toList()
     }
 
     override fun getCountAllActive(): Long
@@ -337,94 +369,105 @@ class DynamoDBDelegationDataAccessProvider(
 
     override fun getAll(resourceQuery: ResourceQuery): Collection<DynamoDBDelegation> = try
     {
-        val comparator = getComparatorFor(resourceQuery)
+        val sortAttribute = getSortAttributeFor(resourceQuery)
 
-        val queryPlan = if (resourceQuery.filter != null)
+        val preparedPlan = if (resourceQuery.filter != null)
         {
-            QueryPlanner(DelegationTable.queryCapabilities).build(resourceQuery.filter)
+            queryPlanner.prepare(resourceQuery.filter)
         } else
         {
-            QueryPlan.UsingScan.fullScan()
+            PreparedQueryPlan.of(QueryPlan.UsingScan.fullScan())
         }
 
-        val values = when (queryPlan)
+        val values = when (val queryPlan = preparedPlan.plan)
         {
-            is QueryPlan.UsingQueries -> query(queryPlan)
-            is QueryPlan.UsingScan -> scan(queryPlan)
+            is QueryPlan.UsingQueries -> query(queryPlan, preparedPlan)
+            is QueryPlan.UsingScan -> scan(queryPlan, preparedPlan)
         }
 
-        val sortedValues = if (comparator != null)
+        val validatedStartIndex = resourceQuery.pagination.startIndex.toIntOrThrow("pagination.startIndex")
+        val validatedCount = resourceQuery.pagination.count.toIntOrThrow("pagination.count")
+
+        val page = if (sortAttribute != null)
         {
-            values.sortedWith(
+            values.selectSortedPage(
+                validatedStartIndex,
+                validatedCount,
+                { sortAttribute.optionalFrom(it) },
                 if (resourceQuery.sorting.sortOrder == ResourceQuery.Sorting.SortOrder.ASCENDING)
                 {
-                    comparator
+                    sortKeyComparator
                 } else
                 {
-                    comparator.reversed()
+                    sortKeyComparator.reversed()
                 }
-            )
+            ).items
         } else
         {
             values
+                .drop(validatedStartIndex)
+                .take(validatedCount)
+                .toList()
         }
 
-        val validatedStartIndex = resourceQuery.pagination.startIndex.toIntOrThrow("pagination.startIndex")
-        val validatedCount = resourceQuery.pagination.count.toIntOrThrow("pagination.count")
-
-        sortedValues
-            .drop(validatedStartIndex)
-            .take(validatedCount)
-            .map { it.toDelegation() }
-            .toList()
+        page.map { it.toDelegation() }
     } catch (e: UnsupportedQueryException)
     {
         _logger.debug("Unable to process query. Reason is '{}', query = '{}", e.message, resourceQuery)
         throw _configuration.getExceptionFactory().externalServiceException(e.message)
     }
 
-    private fun query(queryPlan: QueryPlan.UsingQueries): Sequence<DynamoDBItem>
+    private fun query(queryPlan: QueryPlan.UsingQueries, preparedPlan: PreparedQueryPlan): Sequence<DynamoDBItem>
     {
         val nOfQueries = queryPlan.queries.entries.size
         if (nOfQueries > MAX_QUERIES)
         {
             throw UnsupportedQueryException.QueryRequiresTooManyOperations(nOfQueries, MAX_QUERIES)
         }
-        val result = linkedMapOf<String, Map<String, AttributeValue>>()
-        queryPlan.queries.forEach { query ->
-            val dynamoDBQuery = DynamoDBQueryBuilder.buildQuery(query.key, query.value)
-
-            val queryRequest = QueryRequest.builder()
-                .tableName(DelegationTable.name)
-                .configureWith(dynamoDBQuery)
-                .build()
-
-            querySequence(queryRequest, _dynamoDBClient)
-                .filterWith(query.value)
-                .forEach {
-                    result[DelegationTable.id.from(it)] = it
+        // The queries are independent, so they can run in parallel, but their results are merged in the plan's order
+        val results = _dynamoDBClient.inParallelQueries(
+            queryPlan.queries.map { query ->
+                {
+                    val dynamoDBQuery = preparedPlan.toDynamoDBQuery(query.key)
+
+                    val queryRequest = QueryRequest.builder()
+                        .tableName(DelegationTable.name)
+                        .configureWith(dynamoDBQuery)
+                        .build()
+
+                    querySequence(queryRequest, _dynamoDBClient)
+                        .filterWith(query.value)
+                        .toList()
                 }
+            }
+        )
+        val result = linkedMapOf<String, Map<String, AttributeValue>>()
+        results.forEach { items ->
+            items.forEach {
+                result[DelegationTable.id.from(it)] = it
+            }
         }
         return result.values.asSequence()
     }
 
-    private fun scan(queryPlan: QueryPlan.UsingScan): Sequence<DynamoDBItem>
+    private fun scan(queryPlan: QueryPlan.UsingScan, preparedPlan: PreparedQueryPlan): Sequence<DynamoDBItem>
     {
         val scanRequestBuilder = ScanRequest.builder()
             .tableName(DelegationTable.name)
 
-        val dynamoDBScan = DynamoDBQueryBuilder.buildScan(queryPlan.expression)
+        val dynamoDBScan = preparedPlan.toDynamoDBScan()
         scanRequestBuilder.configureWith(dynamoDBScan)
         return scanSequence(scanRequestBuilder.build(), _dynamoDBClient)
             .filterWith(queryPlan.expression.products)
     }
 
-    private fun getComparatorFor(resourceQuery: ResourceQuery): Comparator<Map<String, AttributeValue>>?
+    // Returns the attribute to sort by, which has a comparator, or null if the query isn't sorted
+    private fun getSortAttributeFor(resourceQuery: ResourceQuery): DynamoDBAttribute<*>?
     {
         return if (resourceQuery.sorting != null && resourceQuery.sorting.sortBy != null)
         {
             DelegationTable.queryCapabilities.attributeMap[resourceQuery.sorting.sortBy]
-                ?.let { attribute ->
+                ?.also { attribute ->
                     attribute.comparator()
                         ?: throw UnsupportedQueryException.UnsupportedSortAttribute(resourceQuery.sorting.sortBy)
                 }
@@ -438,6 +481,7 @@ class DynamoDBDelegationDataAccessProvider(
     companion object
     {
         private val _logger = LoggerFactory.getLogger(DynamoDBDelegationDataAccessProvider::class.java)
+        private const val CACHE_NAME = "delegations"
         private val issuedStatusExpressionAttribute =
             DelegationTable.status.toExpressionNameValuePair(DelegationStatus.issued)
         private val issuedStatusExpressionAttributeMap = mapOf(issuedStatusExpressionAttribute)
@@ -446,6 +490,19 @@ class DynamoDBDelegationDataAccessProvider(
         private val updateConditionExpression = "attribute_exists(${DelegationTable.id})"
 
         private const val MAX_QUERIES = 8
+
+        private val statusUpdates = DelegationStatus.values().associateWith { status ->
+            PreparedUpdate(
+                DelegationTable,
+                "SET ${DelegationTable.status.hashName} = ${DelegationTable.status.colonName}",
+                updateConditionExpression,
+                mapOf(DelegationTable.status.toNamePair()),
+                mapOf(DelegationTable.status.toExpressionNameValuePair(status))
+            )
+        }
+
+        // Shared, so that query plans are cached across requests
+        private val queryPlanner = QueryPlanner(DelegationTable.queryCapabilities)
     }
 }
 
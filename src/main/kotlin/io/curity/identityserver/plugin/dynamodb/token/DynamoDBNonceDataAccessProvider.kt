@@ -16,7 +16,9 @@
 package io.curity.identityserver.plugin.dynamodb.token
 
 import io.curity.identityserver.plugin.dynamodb.DynamoDBClient
+import io.curity.identityserver.plugin.dynamodb.LocalCache
 import io.curity.identityserver.plugin.dynamodb.NumberLongAttribute
+import io.curity.identityserver.plugin.dynamodb.PreparedUpdate
 import io.curity.identityserver.plugin.dynamodb.StringAttribute
 import io.curity.identityserver.plugin.dynamodb.Table
 import io.curity.identityserver.plugin.dynamodb.configuration.DynamoDBDataAccessProviderConfiguration
@@ -26,14 +28,19 @@ import se.curity.identityserver.sdk.errors.ConflictException
 import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException
 import software.amazon.awssdk.services.dynamodb.model.GetItemRequest
 import software.amazon.awssdk.services.dynamodb.model.PutItemRequest
-import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest
 import java.time.Instant
+import java.util.concurrent.TimeUnit
 
 class DynamoDBNonceDataAccessProvider(
     private val _dynamoDBClient: DynamoDBClient,
     private val _configuration: DynamoDBDataAccessProviderConfiguration
 ) : NonceDataAccessProvider
 {
+    // Consumed and expired nonces never become valid again, so they can be remembered until they are deleted
+    private val _deadNonces: LocalCache<String, NonceStatus>? = _configuration.getNonceCache()
+        .map { _dynamoDBClient.localCache<String, NonceStatus>(CACHE_NAME, it.maxEntries) }
+        .orElse(null)
+
     object NonceTable : Table("curity-nonces")
     {
         val nonce = StringAttribute("nonce")
@@ -49,6 +56,11 @@ class DynamoDBNonceDataAccessProvider(
 
     override fun get(nonce: String): String?
     {
+        if (_deadNonces?.get(nonce) != null)
+        {
+            return null
+        }
+
         val request = GetItemRequest.builder()
             .tableName(NonceTable.name)
             .key(NonceTable.key(nonce))
@@ -64,13 +76,14 @@ class DynamoDBNonceDataAccessProvider(
         val item = response.item()
 
         val status = NonceStatus.valueOf(NonceTable.nonceStatus.from(item))
+        val createdAt = NonceTable.createAt.from(item)
+        val ttl = NonceTable.nonceTtl.from(item)
         if (status != NonceStatus.issued)
         {
+            rememberDead(nonce, status, createdAt + ttl)
             return null
         }
 
-        val createdAt = NonceTable.createAt.from(item)
-        val ttl = NonceTable.nonceTtl.from(item)
         val now = Instant.now().epochSecond
 
         _logger.trace("Nonce createdAt: {}, ttl: {}, now: {}", createdAt, ttl, now)
@@ -78,6 +91,7 @@ class DynamoDBNonceDataAccessProvider(
         if (createdAt + ttl <= now)
         {
             expireNonce(nonce)
+            rememberDead(nonce, NonceStatus.expired, createdAt + ttl)
             return null
         }
 
@@ -108,11 +122,24 @@ class DynamoDBNonceDataAccessProvider(
         {
             throw ConflictException("Nonce already exists")
         }
+        // The nonce may have been remembered before its previous item was deleted
+        _deadNonces?.invalidate(nonce)
     }
 
     override fun consume(nonce: String, consumedAt: Long)
     {
-        consumeNonce(nonce, consumedAt)
+        if (consumeNonce(nonce, consumedAt))
+        {
+            // The nonce's creation and time-to-live are not known here, but it can't be consumed after it expires
+            rememberDead(nonce, NonceStatus.consumed, consumedAt)
+        }
+    }
+
+    // The nonce's item is deleted after its expiration plus the retain duration, after which it is not remembered
+    private fun rememberDead(nonce: String, status: NonceStatus, expiresAt: Long)
+    {
+        val deletableAt = expiresAt + _configuration.getNoncesTtlRetainDuration()
+        _deadNonces?.put(nonce, status, TimeUnit.SECONDS.toMillis(deletableAt))
     }
 
     private fun consumeNonce(nonce: String, consumedAt: Long) = changeStatus(nonce, NonceStatus.consumed, consumedAt)
@@ -126,44 +153,29 @@ class DynamoDBNonceDataAccessProvider(
     // Also, if the deletableAt was enabled when the nonce was created and disabled when the nonce is updated,
     // then the original deletableAt is kept.
     // We also don't add a deletableAt when the nonce is updated.
-    private fun changeStatus(nonce: String, status: NonceStatus, maybeConsumedAt: Long?)
+    // Returns false if the nonce doesn't exist
+    private fun changeStatus(nonce: String, status: NonceStatus, maybeConsumedAt: Long?): Boolean
     {
-        val requestBuilder = UpdateItemRequest.builder()
-            .tableName(NonceTable.name)
-            .conditionExpression("attribute_exists(${NonceTable.nonce.name})")
-            .key(NonceTable.key(nonce))
-
-        if (status == NonceStatus.consumed)
+        val requestBuilder = if (status == NonceStatus.consumed)
         {
             val consumedAt = maybeConsumedAt ?: throw IllegalArgumentException("consumedAt cannot be null")
-            requestBuilder
-                .updateExpression(
-                    "SET ${NonceTable.nonceStatus.name} = ${NonceTable.nonceStatus.colonName}, " +
-                            "${NonceTable.consumedAt.name} = ${NonceTable.consumedAt.colonName}"
-                )
-                .expressionAttributeValues(
-                    mapOf(
-                        NonceTable.nonceStatus.toExpressionNameValuePair(status.name),
-                        NonceTable.consumedAt.toExpressionNameValuePair(consumedAt)
-                    )
-                )
+            consumeUpdate.request(
+                NonceTable.key(nonce),
+                mapOf(NonceTable.consumedAt.toExpressionNameValuePair(consumedAt))
+            )
         } else
         {
-            requestBuilder
-                .updateExpression("SET ${NonceTable.nonceStatus.name} = ${NonceTable.nonceStatus.colonName}")
-                .expressionAttributeValues(
-                    mapOf(
-                        NonceTable.nonceStatus.toExpressionNameValuePair(status.name)
-                    )
-                )
+            statusUpdates.getValue(status).request(NonceTable.key(nonce))
         }
 
-        try
+        return try
         {
             _dynamoDBClient.updateItem(requestBuilder.build())
+            true
         } catch (_: ConditionalCheckFailedException)
         {
             _logger.trace("Trying to update a nonexistent nonce")
+            false
         }
     }
 
@@ -177,5 +189,26 @@ class DynamoDBNonceDataAccessProvider(
     companion object
     {
         val _logger = LoggerFactory.getLogger(DynamoDBNonceDataAccessProvider::class.java)
+
+        private const val CACHE_NAME = "dead-nonces"
+
+        private val updateConditionExpression = "attribute_exists(${NonceTable.nonce.name})"
+
+        private val statusUpdates = NonceStatus.values().associateWith { status ->
+            PreparedUpdate(
+                NonceTable,
+                "SET ${NonceTable.nonceStatus.name} = ${NonceTable.nonceStatus.colonName}",
+                updateConditionExpression,
+                constantValues = mapOf(NonceTable.nonceStatus.toExpressionNameValuePair(status.name))
+            )
+        }
+
+        private val consumeUpdate = PreparedUpdate(
+            NonceTable,
+            "SET ${NonceTable.nonceStatus.name} = ${NonceTable.nonceStatus.colonName}, " +
+                    "${NonceTable.consumedAt.name} = ${NonceTable.consumedAt.colonName}",
+            updateConditionExpression,
+            constantValues = mapOf(NonceTable.nonceStatus.toExpressionNameValuePair(NonceStatus.consumed.name))
+        )
     }
 }
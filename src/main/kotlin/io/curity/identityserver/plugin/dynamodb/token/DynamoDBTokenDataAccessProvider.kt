@@ -18,7 +18,9 @@ package io.curity.identityserver.plugin.dynamodb.token
 import io.curity.identityserver.plugin.dynamodb.DynamoDBClient
 import io.curity.identityserver.plugin.dynamodb.DynamoDBItem
 import io.curity.identityserver.plugin.dynamodb.ListStringAttribute
+import io.curity.identityserver.plugin.dynamodb.LocalCache
 import io.curity.identityserver.plugin.dynamodb.NumberLongAttribute
+import io.curity.identityserver.plugin.dynamodb.PreparedUpdate
 import io.curity.identityserver.plugin.dynamodb.StringAttribute
 import io.curity.identityserver.plugin.dynamodb.Table
 import io.curity.identityserver.plugin.dynamodb.configuration.DynamoDBDataAccessProviderConfiguration
@@ -32,7 +34,7 @@ import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedExce
 import software.amazon.awssdk.services.dynamodb.model.GetItemRequest
 import software.amazon.awssdk.services.dynamodb.model.PutItemRequest
 import software.amazon.awssdk.services.dynamodb.model.ReturnValue
-import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest
+import java.util.concurrent.TimeUnit
 
 class DynamoDBTokenDataAccessProvider(
     private val _configuration: DynamoDBDataAccessProviderConfiguration,
@@ -41,6 +43,15 @@ class DynamoDBTokenDataAccessProvider(
 {
     private val _jsonHandler = _configuration.getJsonHandler()
 
+    // Unknown token hashes are cached as entries without a token
+    private class CachedToken(val token: Token?)
+
+    private val _cacheConfiguration: DynamoDBDataAccessProviderConfiguration.TokenCache? =
+        _configuration.getTokenCache().orElse(null)
+    private val _cache: LocalCache<String, CachedToken>? = _cacheConfiguration?.let {
+        _dynamoDBClient.localCache(CACHE_NAME, it.maxEntries)
+    }
+
     object TokenTable : Table("curity-tokens")
     {
         val tokenHash = StringAttribute("tokenHash")
@@ -120,6 +131,9 @@ class DynamoDBTokenDataAccessProvider(
 
     override fun getByHash(hash: String): Token?
     {
+        _cache?.get(hash)?.let { return it.token }
+        val writeGeneration = _cache?.writeGeneration
+
         val request = GetItemRequest.builder()
             .tableName(TokenTable.name)
             .key(TokenTable.keyFromHash(hash))
@@ -130,10 +144,11 @@ class DynamoDBTokenDataAccessProvider(
 
         if (!response.hasItem() || response.item().isEmpty())
         {
+            cache(hash, null, writeGeneration)
             return null
         }
 
-        return response.item().toToken()
+        return response.item().toToken().also { cache(hash, it, writeGeneration) }
     }
 
     override fun create(token: Token)
@@ -143,6 +158,7 @@ class DynamoDBTokenDataAccessProvider(
             .conditionExpression("attribute_not_exists(${TokenTable.tokenHash.name})")
             .item(token.toItem())
             .build()
+        val writeGeneration = _cache?.writeGeneration
 
         try
         {
@@ -151,6 +167,7 @@ class DynamoDBTokenDataAccessProvider(
         {
             throw ConflictException("Token with same hash already exists")
         }
+        cache(token.tokenHash, token, writeGeneration)
     }
 
     override fun getStatus(tokenHash: String): String?
@@ -162,16 +179,13 @@ class DynamoDBTokenDataAccessProvider(
 
     override fun setStatusByTokenHash(tokenHash: String, newStatus: TokenStatus): Long
     {
-        val request = UpdateItemRequest.builder()
-            .tableName(TokenTable.name)
-            .key(TokenTable.keyFromHash(tokenHash))
-            .conditionExpression("attribute_exists(${TokenTable.tokenHash})")
-            .updateExpression("SET ${TokenTable.status.hashName} = ${TokenTable.status.colonName}")
-            .expressionAttributeNames(mapOf(TokenTable.status.toNamePair()))
-            .expressionAttributeValues(mapOf(TokenTable.status.toExpressionNameValuePair(newStatus.name)))
+        val request = statusUpdates.getValue(newStatus)
+            .request(TokenTable.keyFromHash(tokenHash))
             .returnValues(ReturnValue.UPDATED_NEW)
             .build()
 
+        // Also invalidated after the update, so that reads overlapping it are not cached
+        _cache?.invalidate(tokenHash)
         try
         {
             val response = _dynamoDBClient.updateItem(request)
@@ -186,7 +200,28 @@ class DynamoDBTokenDataAccessProvider(
         {
             // this exceptions means the entry does not exists, which isn't an error
             return 0
+        } finally
+        {
+            _cache?.invalidate(tokenHash)
+        }
+    }
+
+    // Tokens are cached until they expire, or for the maximum staleness, whatever happens first
+    private fun cache(tokenHash: String, token: Token?, writeGeneration: Long?)
+    {
+        val cacheConfiguration = _cacheConfiguration ?: return
+        val now = System.currentTimeMillis()
+        val expiresAtMillis = if (token == null)
+        {
+            now + TimeUnit.SECONDS.toMillis(cacheConfiguration.unknownTokenTtl)
+        } else
+        {
+            minOf(
+                TimeUnit.SECONDS.toMillis(token.expires),
+                now + TimeUnit.SECONDS.toMillis(cacheConfiguration.maxStaleness)
+            )
         }
+        _cache?.put(tokenHash, CachedToken(token), expiresAtMillis, writeGeneration)
     }
 
     override fun setStatus(tokenId: String, newStatus: TokenStatus): Long
@@ -194,4 +229,19 @@ class DynamoDBTokenDataAccessProvider(
         // This method is not implemented because it isn't used and will be deprecated.
         throw UnsupportedOperationException()
     }
+
+    companion object
+    {
+        private const val CACHE_NAME = "tokens"
+
+        private val statusUpdates = TokenStatus.values().associateWith { status ->
+            PreparedUpdate(
+                TokenTable,
+                "SET ${TokenTable.status.hashName} = ${TokenTable.status.colonName}",
+                "attribute_exists(${TokenTable.tokenHash})",
+                mapOf(TokenTable.status.toNamePair()),
+                mapOf(TokenTable.status.toExpressionNameValuePair(status.name))
+            )
+        }
+    }
 }
@@ -17,7 +17,17 @@
 package io.curity.identityserver.plugin.dynamodb
 
 import org.slf4j.LoggerFactory
+import software.amazon.awssdk.services.dynamodb.model.ConsumedCapacity
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemResponse
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbResponse
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse
+import software.amazon.awssdk.services.dynamodb.model.PutItemResponse
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsResponse
 import software.amazon.awssdk.services.dynamodb.model.TransactionCanceledException
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse
+import java.time.Duration
 
 private val _logger = LoggerFactory.getLogger("utils")
 
@@ -49,27 +59,77 @@ sealed class TransactionAttemptResult<out T>
     class Failure(val exception: Exception) : TransactionAttemptResult<Nothing>()
 }
 
-fun <T> retry(name: String, tries: Int, action: () -> TransactionAttemptResult<T>): T
+/**
+ * Runs [action] up to [tries] times, until it succeeds.
+ * Between attempts, waits for the delays given by [backoffPolicy], giving up earlier if the sum of the delays
+ * would exceed the policy's maximum total delay.
+ */
+fun <T> retry(
+    name: String,
+    tries: Int,
+    backoffPolicy: BackoffPolicy,
+    action: () -> TransactionAttemptResult<T>
+): T
 {
     var attempt = 0
+    var previousDelay: Duration? = null
+    var totalDelay = Duration.ZERO
     while (true)
     {
         when (val res = action())
         {
             is TransactionAttemptResult.Success -> return res.value
             is TransactionAttemptResult.Failure ->
+            {
                 if (attempt + 1 == tries)
                 {
                     _logger.debug("Transactional operation '{}' failed, giving up after '{}' attempts", name, tries)
                     throw res.exception
                 }
-
+                val delay = backoffPolicy.nextDelay(previousDelay)
+                totalDelay += delay
+                if (totalDelay > backoffPolicy.maxTotalDelay)
+                {
+                    _logger.debug(
+                        "Transactional operation '{}' failed, giving up after '{}' attempts, maximum total delay reached",
+                        name, attempt + 1
+                    )
+                    throw res.exception
+                }
+                _logger.debug(
+                    "Transactional operation '{}' failed, retrying after '{}' ms", name, delay.toMillis()
+                )
+                if (!delay.isZero)
+                {
+                    Thread.sleep(delay.toMillis())
+                }
+                previousDelay = delay
+            }
         }
-        _logger.debug("Transactional operation '{}' failed, giving up after '{}' attempts", name, tries)
         attempt += 1
     }
 }
 
+fun isReadOperation(operationName: String) = operationName in READ_OPERATIONS
+
+private val READ_OPERATIONS = setOf("GetItem", "Query", "Scan")
+
+/**
+ * Returns the consumed capacity reported by a response, which is only present if requested.
+ * Transactions report one entry per table.
+ */
+fun DynamoDbResponse.consumedCapacities(): List<ConsumedCapacity> = when (this)
+{
+    is GetItemResponse -> listOfNotNull(consumedCapacity())
+    is PutItemResponse -> listOfNotNull(consumedCapacity())
+    is UpdateItemResponse -> listOfNotNull(consumedCapacity())
+    is DeleteItemResponse -> listOfNotNull(consumedCapacity())
+    is QueryResponse -> listOfNotNull(consumedCapacity())
+    is ScanResponse -> listOfNotNull(consumedCapacity())
+    is TransactWriteItemsResponse -> if (hasConsumedCapacity()) consumedCapacity() else listOf()
+    else -> listOf()
+}
+
 fun Long.toIntOrThrow(name: String) =
     if(this > Int.MAX_VALUE || this < 0)
     {
@@ -0,0 +1,55 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import org.junit.Assert.assertThrows
+import org.junit.Test
+
+class AdaptiveRateLimiterTests
+{
+    // Requests are rejected rather than waiting for their turn
+    private val limiter = AdaptiveRateLimiter(0)
+
+    @Test
+    fun testThrottledRequestWithoutRetriesLowersRate()
+    {
+        repeat(10) { limiter.acquire() }
+
+        limiter.onFailure("ThrottlingException")
+
+        assertThrows(AdaptiveRateLimitExceededException::class.java) { repeat(10) { limiter.acquire() } }
+    }
+
+    @Test
+    fun testOtherFailuresDontLowerRate()
+    {
+        limiter.onFailure("ValidationException")
+
+        repeat(10) { limiter.acquire() }
+    }
+
+    @Test
+    fun testSuccessesDontLowerRate()
+    {
+        repeat(10) {
+            limiter.acquire()
+            limiter.onSuccess()
+        }
+
+        repeat(10) { limiter.acquire() }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import org.junit.Assert.assertThrows
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class CircuitBreakerTests
+{
+    @Test
+    fun testOpensOnlyAfterMinimumRequests()
+    {
+        val circuitBreaker = circuitBreaker(openMillis = 60_000)
+
+        repeat(3) { request(circuitBreaker, failed = true) }
+        request(circuitBreaker, failed = false)
+
+        assertThrows(CircuitBreakerOpenException::class.java) { circuitBreaker.acquirePermission() }
+    }
+
+    @Test
+    fun testStaysClosedBelowFailureRate()
+    {
+        val circuitBreaker = circuitBreaker(openMillis = 60_000)
+
+        repeat(10) { request(circuitBreaker, failed = it % 3 == 2) }
+
+        circuitBreaker.acquirePermission()
+    }
+
+    @Test
+    fun testHalfOpenAllowsLimitedProbesAndClosesAfterThem()
+    {
+        val circuitBreaker = circuitBreaker(openMillis = 0)
+        repeat(4) { request(circuitBreaker, failed = true) }
+
+        circuitBreaker.acquirePermission()
+        circuitBreaker.acquirePermission()
+        assertThrows(CircuitBreakerOpenException::class.java) { circuitBreaker.acquirePermission() }
+
+        circuitBreaker.onResult(failed = false)
+        circuitBreaker.onResult(failed = false)
+        repeat(5) { circuitBreaker.acquirePermission() }
+    }
+
+    @Test
+    fun testReleasedProbeCanBeTakenAgain()
+    {
+        val circuitBreaker = circuitBreaker(openMillis = 0)
+        repeat(4) { request(circuitBreaker, failed = true) }
+
+        circuitBreaker.acquirePermission()
+        circuitBreaker.acquirePermission()
+        circuitBreaker.releasePermission()
+
+        circuitBreaker.acquirePermission()
+    }
+
+    @Test
+    fun testFailedProbeOpensAgain()
+    {
+        val circuitBreaker = circuitBreaker(openMillis = 50)
+        repeat(4) { request(circuitBreaker, failed = true) }
+        Thread.sleep(60)
+
+        request(circuitBreaker, failed = true)
+
+        assertThrows(CircuitBreakerOpenException::class.java) { circuitBreaker.acquirePermission() }
+    }
+
+    // Opens at 50% failures, after at least 4 requests, and probes with 2 requests
+    private fun circuitBreaker(openMillis: Long) = CircuitBreaker(
+        "test", 50, 4, TimeUnit.SECONDS.toNanos(60), TimeUnit.MILLISECONDS.toNanos(openMillis), 2
+    )
+
+    private fun request(circuitBreaker: CircuitBreaker, failed: Boolean)
+    {
+        circuitBreaker.acquirePermission()
+        circuitBreaker.onResult(failed)
+    }
+}
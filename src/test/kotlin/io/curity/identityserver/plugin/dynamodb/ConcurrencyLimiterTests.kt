@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import org.junit.Assert.assertThrows
+import org.junit.Test
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+
+class ConcurrencyLimiterTests
+{
+    @Test
+    fun testRequestOverLimitIsRejectedAfterQueueTime()
+    {
+        val limiter = ConcurrencyLimiter(2, 2, TimeUnit.MILLISECONDS.toNanos(10), 2.0)
+        limiter.acquire()
+        limiter.acquire()
+
+        assertThrows(ConcurrencyLimitExceededException::class.java) { limiter.acquire() }
+    }
+
+    @Test
+    fun testReleaseLetsQueuedRequestProceed()
+    {
+        val limiter = ConcurrencyLimiter(1, 1, TimeUnit.SECONDS.toNanos(10), 2.0)
+        limiter.acquire()
+
+        val queued = CompletableFuture.runAsync { limiter.acquire() }
+        Thread.sleep(20)
+        limiter.release("t/GetItem", TimeUnit.MILLISECONDS.toNanos(1), overloaded = false)
+
+        queued.get(5, TimeUnit.SECONDS)
+    }
+
+    @Test
+    fun testSlowerOperationIsComparedWithItsOwnBaseline()
+    {
+        val limiter = ConcurrencyLimiter(10, 10, 0, 2.0)
+        complete(limiter, "t/GetItem", 1)
+        repeat(5) {
+            Thread.sleep(5)
+            complete(limiter, "t/Query", 50)
+        }
+
+        repeat(10) { limiter.acquire() }
+    }
+
+    @Test
+    fun testLatencyAboveBaselineDecreasesLimit()
+    {
+        val limiter = ConcurrencyLimiter(10, 10, 0, 2.0)
+        complete(limiter, "t/Query", 1)
+        repeat(5) {
+            Thread.sleep(5)
+            complete(limiter, "t/Query", 50)
+        }
+
+        assertThrows(ConcurrencyLimitExceededException::class.java) { repeat(10) { limiter.acquire() } }
+    }
+
+    @Test
+    fun testOverloadDecreasesLimit()
+    {
+        val limiter = ConcurrencyLimiter(10, 10, 0, 2.0)
+        repeat(5) {
+            Thread.sleep(5)
+            limiter.acquire()
+            limiter.release("t/GetItem", TimeUnit.MILLISECONDS.toNanos(1), overloaded = true)
+        }
+
+        assertThrows(ConcurrencyLimitExceededException::class.java) { repeat(10) { limiter.acquire() } }
+    }
+
+    private fun complete(limiter: ConcurrencyLimiter, kind: String, rttMillis: Long)
+    {
+        limiter.acquire()
+        limiter.release(kind, TimeUnit.MILLISECONDS.toNanos(rttMillis), overloaded = false)
+    }
+}
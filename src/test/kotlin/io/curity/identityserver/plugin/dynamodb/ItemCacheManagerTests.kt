@@ -0,0 +1,171 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest
+
+class ItemCacheManagerTests
+{
+    // All items have the same size, which is much larger than the overhead of an entry,
+    // so limits are expressed as a number of items plus a fraction of one
+    private val itemSize = ItemCacheManager.estimatedSize(item("a"))
+    private var sendCount = 0
+
+    @Test
+    fun testLeastRecentlyUsedEntryIsEvictedFromFullRegion()
+    {
+        val cache = ItemCacheManager(100 * itemSize)
+        cache.register(region("t1", 2.5))
+
+        getItem(cache, "t1", "a")
+        getItem(cache, "t1", "b")
+        getItem(cache, "t1", "a")
+        getItem(cache, "t1", "c")
+        assertEquals(3, sendCount)
+
+        getItem(cache, "t1", "a")
+        getItem(cache, "t1", "c")
+        assertEquals(3, sendCount)
+        getItem(cache, "t1", "b")
+        assertEquals(4, sendCount)
+    }
+
+    @Test
+    fun testGlobalBudgetEvictsFromRegionUsingLargestFraction()
+    {
+        val cache = ItemCacheManager((3.5 * itemSize).toLong())
+        cache.register(region("t1", 10.0))
+        cache.register(region("t2", 2.5))
+
+        getItem(cache, "t1", "a")
+        getItem(cache, "t1", "b")
+        getItem(cache, "t2", "x")
+        getItem(cache, "t1", "c")
+        assertEquals(4, sendCount)
+
+        listOf("a", "b", "c").forEach { getItem(cache, "t1", it) }
+        assertEquals(4, sendCount)
+        getItem(cache, "t2", "x")
+        assertEquals(5, sendCount)
+    }
+
+    @Test
+    fun testWriteInvalidatesItemWithSameKeyAndQueries()
+    {
+        val cache = ItemCacheManager(100 * itemSize)
+        cache.register(region("t1", 10.0))
+        getItem(cache, "t1", "a")
+        getItem(cache, "t1", "b")
+        query(cache, "t1", "a")
+
+        cache.onWrite(UpdateItemRequest.builder().tableName("t1").key(key("a")).build())
+        getItem(cache, "t1", "b")
+        assertEquals(3, sendCount)
+        getItem(cache, "t1", "a")
+        query(cache, "t1", "a")
+        assertEquals(5, sendCount)
+
+        cache.onWrite(PutItemRequest.builder().tableName("t1").item(item("b")).build())
+        getItem(cache, "t1", "a")
+        assertEquals(5, sendCount)
+        getItem(cache, "t1", "b")
+        assertEquals(6, sendCount)
+    }
+
+    @Test
+    fun testResponseReadDuringWriteIsNotCached()
+    {
+        val cache = ItemCacheManager(100 * itemSize)
+        cache.register(region("t1", 10.0))
+
+        getItem(cache, "t1", "a") {
+            cache.onWrite(UpdateItemRequest.builder().tableName("t1").key(key("a")).build())
+        }
+        getItem(cache, "t1", "a")
+        assertEquals(2, sendCount)
+    }
+
+    @Test
+    fun testResponseReadDuringClearIsNotCached()
+    {
+        val cache = ItemCacheManager(100 * itemSize)
+        cache.register(region("t1", 10.0))
+
+        getItem(cache, "t1", "a") { cache.clear() }
+        getItem(cache, "t1", "a")
+        assertEquals(2, sendCount)
+    }
+
+    @Test
+    fun testConsistentReadsAreOnlyServedIfEnabled()
+    {
+        val cache = ItemCacheManager(100 * itemSize)
+        cache.register(region("t1", 10.0))
+        cache.register(region("t2", 10.0, servesConsistentReads = true))
+
+        listOf("t1", "t2").forEach { tableName ->
+            getItem(cache, tableName, "a")
+            getItem(cache, tableName, "a", consistentRead = true)
+        }
+        assertEquals(3, sendCount)
+    }
+
+    private fun region(tableName: String, maxItems: Double, servesConsistentReads: Boolean = false) =
+        ItemCacheManager.Region(
+            tableName, listOf("id"), 60_000, (maxItems * itemSize).toLong(), servesConsistentReads
+        )
+
+    private fun getItem(
+        cache: ItemCacheManager,
+        tableName: String,
+        id: String,
+        consistentRead: Boolean = false,
+        whileSending: () -> Unit = {}
+    ) = cache.getItem(
+        GetItemRequest.builder().tableName(tableName).key(key(id)).consistentRead(consistentRead).build()
+    ) {
+        sendCount++
+        whileSending()
+        GetItemResponse.builder().item(item(id)).build()
+    }
+
+    private fun query(cache: ItemCacheManager, tableName: String, id: String) = cache.query(
+        QueryRequest.builder()
+            .tableName(tableName)
+            .keyConditionExpression("id = :id")
+            .expressionAttributeValues(mapOf(":id" to AttributeValue.builder().s(id).build()))
+            .build()
+    ) {
+        sendCount++
+        QueryResponse.builder().items(item(id)).build()
+    }
+
+    companion object
+    {
+        private fun key(id: String) = mapOf("id" to AttributeValue.builder().s(id).build())
+
+        private fun item(id: String) = key(id) + ("data" to AttributeValue.builder().s("x".repeat(2000)).build())
+    }
+}
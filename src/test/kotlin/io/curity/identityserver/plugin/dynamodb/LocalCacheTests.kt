@@ -0,0 +1,71 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class LocalCacheTests
+{
+    private val cache = LocalCache<String, String>("test", 10)
+    private val expiresAtMillis = System.currentTimeMillis() + 60_000
+
+    @Test
+    fun testValueReadDuringWriteIsNotCached()
+    {
+        val writeGeneration = cache.writeGeneration
+        cache.invalidate("a")
+
+        cache.put("a", "previous", expiresAtMillis, writeGeneration)
+
+        assertNull(cache.get("a"))
+    }
+
+    @Test
+    fun testValueReadDuringClearIsNotCached()
+    {
+        val writeGeneration = cache.writeGeneration
+        cache.clear()
+
+        cache.put("a", "previous", expiresAtMillis, writeGeneration)
+
+        assertNull(cache.get("a"))
+    }
+
+    @Test
+    fun testValueReadWithoutWritesIsCached()
+    {
+        val writeGeneration = cache.writeGeneration
+
+        cache.put("a", "current", expiresAtMillis, writeGeneration)
+
+        assertEquals("current", cache.get("a"))
+    }
+
+    @Test
+    fun testReplaceDoesNotRestoreInvalidatedEntry()
+    {
+        val cached = "previous"
+        cache.put("a", cached, expiresAtMillis)
+        cache.invalidate("a")
+
+        assertFalse(cache.replace("a", cached, "refreshed", expiresAtMillis))
+        assertNull(cache.get("a"))
+    }
+}
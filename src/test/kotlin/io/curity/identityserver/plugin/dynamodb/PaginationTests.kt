@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue
+
+class PaginationTests
+{
+    // Simulates a table with 10 items, returned in responses of 3 items
+    private val items = (0 until 10).map { mapOf("id" to AttributeValue.builder().n(it.toString()).build()) }
+    private var requestCount = 0
+
+    private val fetch: Fetcher = { exclusiveStartKey ->
+        requestCount++
+        val start = exclusiveStartKey?.let { it.getValue("id").n().toInt() + 1 } ?: 0
+        val end = minOf(start + 3, items.size)
+        Pair(items.subList(start, end), if (end < items.size) items[end - 1] else null)
+    }
+
+    @Test
+    fun testPageIsResumedFromCheckpoint()
+    {
+        val checkpoints = PaginationCheckpoints.Checkpoints()
+        val (firstOffset, firstCursor) = checkpoints.cursorTo(2)
+        page(firstCursor, 5, fetch) { itemsRead, key -> checkpoints.record(firstOffset + itemsRead, key) }
+
+        requestCount = 0
+        val (offset, cursor) = checkpoints.cursorTo(7)
+        val page = page(cursor, 2, fetch)
+
+        assertEquals(6, offset)
+        assertEquals(items.subList(7, 9), page.items)
+        assertEquals(1, requestCount)
+    }
+
+    @Test
+    fun testTotalIsKeptWithCheckpoints()
+    {
+        val checkpoints = PaginationCheckpoints.Checkpoints()
+        val firstPage = pageWithTotal(checkpoints, 0, 2, fetch)
+        assertEquals(items.subList(0, 2), firstPage.items)
+        assertEquals(10L, firstPage.totalCount)
+        assertEquals(4, requestCount)
+
+        requestCount = 0
+        val page = pageWithTotal(checkpoints, 7, 2, fetch)
+
+        assertEquals(items.subList(7, 9), page.items)
+        assertEquals(10L, page.totalCount)
+        assertEquals(1, requestCount)
+    }
+
+    @Test
+    fun testNextCursorsCoverAllItems()
+    {
+        val result = mutableListOf<DynamoDBItem>()
+        var cursor: PaginationCursor? = PaginationCursor(null, 0)
+        while (cursor != null)
+        {
+            val page = page(cursor, 4, fetch)
+            result.addAll(page.items)
+            cursor = page.next
+        }
+
+        assertEquals(items, result)
+    }
+
+    @Test
+    fun testLastPageHasNoContinuation()
+    {
+        assertNull(page(PaginationCursor(null, 8), 5, fetch).next)
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Test
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest
+
+class PreparedUpdateTests
+{
+    @Test
+    fun testPreparedRequestMatchesRequestBuiltOnEachCall()
+    {
+        val preparedUpdate = PreparedUpdate(
+            TestTable,
+            "SET ${TestTable.status.hashName} = ${TestTable.status.colonName}, " +
+                    "${TestTable.updated.hashName} = ${TestTable.updated.colonName}",
+            "attribute_exists(${TestTable.id})",
+            mapOf(TestTable.status.toNamePair(), TestTable.updated.toNamePair()),
+            mapOf(TestTable.status.toExpressionNameValuePair("revoked"))
+        )
+
+        val expected = UpdateItemRequest.builder()
+            .tableName(TestTable.name)
+            .key(mapOf(TestTable.id.toNameValuePair("id-1")))
+            .conditionExpression("attribute_exists(${TestTable.id})")
+            .updateExpression(
+                "SET ${TestTable.status.hashName} = ${TestTable.status.colonName}, " +
+                        "${TestTable.updated.hashName} = ${TestTable.updated.colonName}"
+            )
+            .expressionAttributeNames(mapOf(TestTable.status.toNamePair(), TestTable.updated.toNamePair()))
+            .expressionAttributeValues(
+                mapOf(
+                    TestTable.status.toExpressionNameValuePair("revoked"),
+                    TestTable.updated.toExpressionNameValuePair(1000)
+                )
+            )
+            .build()
+
+        assertEquals(
+            expected,
+            preparedUpdate
+                .request(
+                    mapOf(TestTable.id.toNameValuePair("id-1")),
+                    mapOf(TestTable.updated.toExpressionNameValuePair(1000))
+                )
+                .build()
+        )
+    }
+
+    @Test
+    fun testEnumAttributeValuesAreOnlyBuiltOnce()
+    {
+        val attribute = EnumAttribute.of<TestStatus>("status")
+
+        assertSame(attribute.toAttrValue(TestStatus.issued), attribute.toAttrValue(TestStatus.issued))
+        assertEquals("issued", attribute.toAttrValue(TestStatus.issued).s())
+    }
+
+    private object TestTable : Table("test")
+    {
+        val id = StringAttribute("id")
+        val status = StringAttribute("status")
+        val updated = NumberLongAttribute("updated")
+    }
+
+    @Suppress("EnumEntryName")
+    private enum class TestStatus
+    {
+        issued, revoked
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Test
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class RequestCoalescingTests
+{
+    private val executor = Executors.newCachedThreadPool()
+    private val collapsed = CountDownLatch(1)
+    private val collapsedCount = AtomicInteger()
+    private val coalescing = RequestCoalescing {
+        collapsedCount.incrementAndGet()
+        collapsed.countDown()
+    }
+
+    private val sendCount = AtomicInteger()
+    private val sending = CountDownLatch(1)
+    private val responseAllowed = CountDownLatch(1)
+
+    @After
+    fun shutdown()
+    {
+        executor.shutdownNow()
+    }
+
+    @Test
+    fun testConcurrentIdenticalRequestsShareResponse()
+    {
+        val first = executeInBackground { response }
+        sending.await(5, TimeUnit.SECONDS)
+        val second = executeInBackground { response }
+        collapsed.await(5, TimeUnit.SECONDS)
+        responseAllowed.countDown()
+
+        assertSame(response, first.get(5, TimeUnit.SECONDS))
+        assertSame(response, second.get(5, TimeUnit.SECONDS))
+        assertEquals(1, sendCount.get())
+        assertEquals(1, collapsedCount.get())
+    }
+
+    @Test
+    fun testRequestAfterWriteIsSentAgain()
+    {
+        val first = executeInBackground { response }
+        sending.await(5, TimeUnit.SECONDS)
+        coalescing.onWrite(TABLE_NAME)
+
+        coalescing.execute(request) {
+            sendCount.incrementAndGet()
+            response
+        }
+        responseAllowed.countDown()
+        first.get(5, TimeUnit.SECONDS)
+
+        assertEquals(2, sendCount.get())
+        assertEquals(0, collapsedCount.get())
+    }
+
+    @Test
+    fun testFailureIsSharedWithWaitingRequests()
+    {
+        val failure = IllegalStateException("failed")
+        val first = executeInBackground { throw failure }
+        sending.await(5, TimeUnit.SECONDS)
+        val second = executeInBackground { response }
+        collapsed.await(5, TimeUnit.SECONDS)
+        responseAllowed.countDown()
+
+        assertSame(failure, failureOf(first))
+        assertSame(failure, failureOf(second))
+        assertEquals(1, sendCount.get())
+    }
+
+    // Sends the request on another thread, where sending waits until the response is allowed
+    private fun executeInBackground(respond: () -> GetItemResponse) = CompletableFuture.supplyAsync({
+        coalescing.execute(request) {
+            sendCount.incrementAndGet()
+            sending.countDown()
+            responseAllowed.await(5, TimeUnit.SECONDS)
+            respond()
+        }
+    }, executor)
+
+    private fun failureOf(future: CompletableFuture<*>): Throwable? = try
+    {
+        future.get(5, TimeUnit.SECONDS)
+        null
+    } catch (e: ExecutionException)
+    {
+        e.cause
+    }
+
+    companion object
+    {
+        private const val TABLE_NAME = "test"
+
+        private val request = GetItemRequest.builder()
+            .tableName(TABLE_NAME)
+            .key(mapOf("id" to AttributeValue.builder().s("a").build()))
+            .build()
+
+        private val response = GetItemResponse.builder()
+            .item(mapOf("id" to AttributeValue.builder().s("a").build()))
+            .build()
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class SelectionTests
+{
+    private val values = listOf(5, null, 3, 9, 3, 1, null, 7, 5, 2)
+        .mapIndexed { index, value -> Pair(index, value) }
+
+    @Test
+    fun testSortedPageMatchesSortingAllElements()
+    {
+        val sortKey = { element: Pair<Int, Int?> -> element.second }
+        listOf(sortKeyComparator, sortKeyComparator.reversed()).forEach { comparator ->
+            val expected = values.sortedWith(Comparator { a, b -> comparator.compare(a.second, b.second) })
+
+            val page = values.asSequence().selectSortedPage(3, 4, sortKey, comparator)
+
+            assertEquals(expected.subList(3, 7), page.items)
+            assertEquals(values.size.toLong(), page.totalCount)
+        }
+    }
+
+    @Test
+    fun testPageBeyondTheEndIsEmpty()
+    {
+        val page = values.asSequence().selectPage(20, 5)
+
+        assertEquals(listOf<Pair<Int, Int?>>(), page.items)
+        assertEquals(values.size.toLong(), page.totalCount)
+    }
+}
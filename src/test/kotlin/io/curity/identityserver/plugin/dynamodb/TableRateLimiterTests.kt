@@ -0,0 +1,55 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb
+
+import org.junit.Assert.assertThrows
+import org.junit.Test
+
+class TableRateLimiterTests
+{
+    // Two units per second for reads and writes, where requests are rejected rather than waiting for their turn
+    private val limiter = TableRateLimiter("test", 2, 2, 0)
+
+    @Test
+    fun testRequestOverCapacityIsRejected()
+    {
+        limiter.acquire("GetItem")
+        limiter.acquire("GetItem")
+
+        assertThrows(RateLimitExceededException::class.java) { limiter.acquire("GetItem") }
+    }
+
+    @Test
+    fun testReleasedCapacityCanBeTakenAgain()
+    {
+        limiter.acquire("GetItem")
+        limiter.acquire("GetItem")
+        limiter.release("GetItem")
+
+        limiter.acquire("GetItem")
+    }
+
+    @Test
+    fun testReleaseDoesNotExceedCapacity()
+    {
+        repeat(5) { limiter.release("PutItem") }
+        limiter.acquire("PutItem")
+        limiter.acquire("PutItem")
+
+        assertThrows(RateLimitExceededException::class.java) { limiter.acquire("PutItem") }
+    }
+}
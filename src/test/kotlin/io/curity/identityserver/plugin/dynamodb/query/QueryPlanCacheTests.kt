@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2021 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.dynamodb.query
+
+import io.curity.identityserver.plugin.dynamodb.DynamoDBUserAccountDataAccessProvider
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import se.curity.identityserver.sdk.data.query.Filter
+
+class QueryPlanCacheTests
+{
+    private val queryPlanner = QueryPlanner(DynamoDBUserAccountDataAccessProvider.AccountsTable.queryCapabilities)
+
+    @Test
+    fun testCachedPlanIsBoundToNewValues()
+    {
+        queryPlanner.prepare(userNameOrEmail("janedoe", "jane.doe@example.com"))
+        val preparedPlan = queryPlanner.prepare(userNameOrEmail("johndoe", "john.doe@example.com"))
+
+        assertQueriesMatchUncachedBuild(preparedPlan)
+        val partitionValues = (preparedPlan.plan as QueryPlan.UsingQueries).queries.keys
+            .map { it.partitionCondition.value }
+            .toSet()
+        assertEquals(setOf("johndoe", "john.doe@example.com"), partitionValues)
+    }
+
+    @Test
+    fun testCachedPlanEqualsUncachedPlan()
+    {
+        val filter = userNameOrEmail("johndoe", "john.doe@example.com")
+        queryPlanner.prepare(userNameOrEmail("janedoe", "jane.doe@example.com"))
+
+        assertEquals(
+            QueryPlanner(DynamoDBUserAccountDataAccessProvider.AccountsTable.queryCapabilities).build(filter),
+            queryPlanner.build(filter)
+        )
+    }
+
+    @Test
+    fun testRepeatedValuesDontShareShapeWithDistinctValues()
+    {
+        val expression = and(
+            BinaryAttributeExpression(EMAIL, BinaryAttributeOperator.Eq, "alice"),
+            BinaryAttributeExpression(USER_NAME, BinaryAttributeOperator.Eq, "alice")
+        )
+        val distinctValuesExpression = and(
+            BinaryAttributeExpression(EMAIL, BinaryAttributeOperator.Eq, "alice"),
+            BinaryAttributeExpression(USER_NAME, BinaryAttributeOperator.Eq, "bob")
+        )
+
+        assertEquals(listOf("alice"), ParameterizedExpression.of(expression).values)
+        assertEquals(listOf("alice", "bob"), ParameterizedExpression.of(distinctValuesExpression).values)
+    }
+
+    @Test
+    fun testCachedScanIsBoundToNewValues()
+    {
+        queryPlanner.prepare(activeWithUserNameStartingWith("jane"))
+        val preparedPlan = queryPlanner.prepare(activeWithUserNameStartingWith("john"))
+
+        val scan = preparedPlan.toDynamoDBScan()
+        val uncachedScan = DynamoDBQueryBuilder.buildScan((preparedPlan.plan as QueryPlan.UsingScan).expression)
+        assertEquals(uncachedScan.filterExpression, scan.filterExpression)
+        assertEquals(uncachedScan.valueMap, scan.valueMap)
+        assertEquals(uncachedScan.nameMap, scan.nameMap)
+    }
+
+    private fun assertQueriesMatchUncachedBuild(preparedPlan: PreparedQueryPlan)
+    {
+        val queries = (preparedPlan.plan as QueryPlan.UsingQueries).queries
+        queries.forEach { (keyCondition, products) ->
+            assertEquals(
+                DynamoDBQueryBuilder.buildQuery(keyCondition, products),
+                preparedPlan.toDynamoDBQuery(keyCondition)
+            )
+        }
+    }
+
+    companion object
+    {
+        private fun userNameOrEmail(userName: String, email: String) = Filter.LogicalExpression(
+            Filter.LogicalOperator.OR,
+            Filter.AttributeExpression(Filter.AttributeOperator.EQ, "userName", userName),
+            Filter.AttributeExpression(Filter.AttributeOperator.EQ, "emails", email)
+        )
+
+        private fun activeWithUserNameStartingWith(prefix: String) = Filter.LogicalExpression(
+            Filter.LogicalOperator.AND,
+            Filter.AttributeExpression(Filter.AttributeOperator.SW, "userName", prefix),
+            Filter.AttributeExpression(Filter.AttributeOperator.EQ, "active", true)
+        )
+    }
+}